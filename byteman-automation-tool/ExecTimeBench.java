@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jboss.byteman.automate.proftool.JMXHelper;
+
+/*
+ * Multi-threaded contention benchmark of the helper exec time recording
+ * path. All threads time calls of the same method, compared against the
+ * String keyed map based implementation of earlier versions.
+ *
+ * javac -cp target/proftool-1.0.jar ExecTimeBench.java
+ * java -cp target/proftool-1.0.jar:. ExecTimeBench [max threads] [seconds] [helper options]
+ */
+public class ExecTimeBench {
+    private static final String sep = "#";
+    private static final ConcurrentHashMap<String, Long> callTimes = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Long> execTimesMin = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Long> execTimesMax = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> execTimesTot = new ConcurrentHashMap<>();
+
+    private static final String clazz = "com.example.Bench";
+    private static final String method = "hot()V";
+
+    private static volatile boolean running;
+
+    // Exec time recording as done by earlier versions of the helper
+    private static void mapCall() {
+        callTimes.put(clazz + sep + method + Long.toString(Thread.currentThread().getId()), System.nanoTime());
+        String id = clazz + sep + method + Long.toString(Thread.currentThread().getId());
+        long exectime = System.nanoTime() - callTimes.get(id);
+        String key = cleanName(clazz + sep + method);
+        execTimesTot.computeIfAbsent(key, k -> new LongAdder()).add(exectime);
+        execTimesMin.putIfAbsent(key, exectime);
+        if (exectime < execTimesMin.get(key)) {
+            execTimesMin.replace(key, exectime);
+        }
+        execTimesMax.putIfAbsent(key, exectime);
+        if (exectime > execTimesMax.get(key)) {
+            execTimesMax.replace(key, exectime);
+        }
+        callTimes.remove(id);
+    }
+
+    private static String cleanName(String key) {
+        key = key.replace(" ", "_").replace("(", "_").replace(")", "").replace("<", "").replace(">", "");
+        return key.replace("?", "").replace(",", "_").replace(sep, ".").replace("/", "");
+    }
+
+    private static long run(int threads, long millis, boolean maps) throws InterruptedException {
+        JMXHelper helper = new JMXHelper(null);
+        LongAdder ops = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        running = true;
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                long n = 0;
+                while (running) {
+                    if (maps) {
+                        mapCall();
+                    } else {
+                        helper.recordMethodCallTime(0);
+                        helper.recordMethodExecTime(0);
+                    }
+                    n++;
+                }
+                ops.add(n);
+                done.countDown();
+            });
+            t.start();
+        }
+        Thread.sleep(millis);
+        running = false;
+        done.await();
+        return ops.sum() * 1000 / millis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        long millis = args.length > 1 ? Long.parseLong(args[1]) * 1000 : 2000;
+        String options = args.length > 2 ? args[2] : "clock=nanos";
+
+        JMXHelper helper = new JMXHelper(null);
+        helper.registerMBean("byteman:type=ExecTimeBench", false, false, false, true, true, false, false, options);
+        helper.declareMethods(0, clazz + sep + method);
+
+        // Warm up both paths
+        run(maxThreads, millis, true);
+        run(maxThreads, millis, false);
+
+        System.out.printf("%8s %16s %16s %8s%n", "threads", "maps ops/s", "cells ops/s", "speedup");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long maps = run(threads, millis, true);
+            long cells = run(threads, millis, false);
+            System.out.printf("%8d %16d %16d %7.1fx%n", threads, maps, cells, (double) cells / maps);
+        }
+    }
+}
@@ -19,37 +19,169 @@
  *
  */
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.Attribute;
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
+/*
+ * Prints all the metrics every five seconds or, with --collect, polls
+ * them at the given interval in milliseconds (default 1000, at least
+ * 100) and prints the changes: counters as deltas and rates per second,
+ * other values when changed, and the time taken to collect them. An
+ * ObjectName pattern such as byteman:type=Statistics,class=<name>,*
+ * selects the MBeans registered per class or method instead.
+ *
+ * javac MBean2TXT.java
+ * java MBean2TXT [--collect [interval]] [pattern]
+ */
 public class MBean2TXT {
     private static String JVM_TARGET = "service:jmx:rmi:///jndi/rmi://localhost:9875/jmxrmi";
+    private static final String OPT_COLLECT = "--collect";
+    private static final String DFL_QUERY = "byteman:type=Statistics";
+    private static final long MIN_INTERVAL = 100;
+    // Attribute lists are cached for this long in collector mode
+    private static final long INFO_REFRESH = 10000;
+    // Attributes counting events since start or reset
+    private static final String[] COUNTERS = { ".calls", ".exit.exception", ".instances.total" };
 
     public static void main(String[] args) {
         try {
             JMXServiceURL url = new JMXServiceURL(JVM_TARGET);
             JMXConnector connector = JMXConnectorFactory.connect(url);
             MBeanServerConnection connection = connector.getMBeanServerConnection();
+            int i = 0;
+            boolean collect = false;
+            long interval = 1000;
+            if (args.length > i && args[i].equals(OPT_COLLECT)) {
+                collect = true;
+                i++;
+                if (args.length > i && args[i].matches("[0-9]+")) {
+                    interval = Long.parseLong(args[i++]);
+                }
+            }
+            ObjectName query = new ObjectName(args.length > i ? args[i] : DFL_QUERY);
+            if (collect) {
+                collect(connection, query, Math.max(interval, MIN_INTERVAL));
+            }
             while (true) {
-                fetchAndPrintItems(connection);
+                fetchAndPrintItems(connection, query);
                 Thread.sleep(5000);
             }
         } catch (Exception ex) { ex.printStackTrace(); }
     }
 
-    private static void fetchAndPrintItems(MBeanServerConnection connection) {
+    /*
+     * Polls with one getAttributes call per MBean, the attribute names
+     * only being refreshed every INFO_REFRESH milliseconds.
+     */
+    private static void collect(MBeanServerConnection connection, ObjectName query, long interval) throws Exception {
+        Map<ObjectName, String[]> names = new LinkedHashMap<>();
+        Map<String, Object> last = new HashMap<>();
+        long lastTime = 0;
+        long infoTime = 0;
+        long polls = 0;
+        long totalNanos = 0;
+        long maxNanos = 0;
+        long next = System.nanoTime();
+        while (true) {
+            long start = System.nanoTime();
+            if (start - infoTime >= TimeUnit.MILLISECONDS.toNanos(INFO_REFRESH) || names.isEmpty()) {
+                names.clear();
+                for (ObjectName mbean: connection.queryNames(query, null)) {
+                    names.put(mbean, simpleAttributes(connection, mbean));
+                }
+                infoTime = System.nanoTime();
+            }
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (Map.Entry<ObjectName, String[]> e: names.entrySet()) {
+                String prefix = prefix(e.getKey());
+                for (Object a: connection.getAttributes(e.getKey(), e.getValue())) {
+                    Attribute attr = (Attribute) a;
+                    values.put(prefix + attr.getName(), attr.getValue());
+                }
+            }
+            long end = System.nanoTime();
+            long nanos = end - start;
+            polls++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+
+            System.out.printf("%s: %d attributes collected in %.3f ms (average %.3f ms, maximum %.3f ms)%n",
+                new java.sql.Timestamp(System.currentTimeMillis()), values.size(), nanos / 1e6, totalNanos / 1e6 / polls, maxNanos / 1e6);
+            double seconds = (end - lastTime) / 1e9;
+            for (Map.Entry<String, Object> e: values.entrySet()) {
+                Object previous = last.get(e.getKey());
+                if (isCounter(e.getKey()) && e.getValue() instanceof Long) {
+                    long value = (Long) e.getValue();
+                    // Values restart from zero on a reset
+                    long delta = previous == null ? 0 : value >= (Long) previous ? value - (Long) previous : value;
+                    if (delta != 0) {
+                        System.out.printf("  %s +%d (%.1f/s)%n", e.getKey(), delta, delta / seconds);
+                    }
+                } else if (!e.getValue().equals(previous)) {
+                    System.out.println("  " + e.getKey() + " " + e.getValue());
+                }
+            }
+            last = values;
+            lastTime = end;
+
+            next += TimeUnit.MILLISECONDS.toNanos(interval);
+            long now = System.nanoTime();
+            if (next < now) {
+                // Collecting took longer than the interval, skip the missed polls
+                next = now + TimeUnit.MILLISECONDS.toNanos(interval) - (now - next) % TimeUnit.MILLISECONDS.toNanos(interval);
+            }
+            TimeUnit.NANOSECONDS.sleep(next - now);
+        }
+    }
+
+    // Readable attributes of simple types, tables being too big to poll
+    private static String[] simpleAttributes(MBeanServerConnection connection, ObjectName mbean) throws Exception {
+        List<String> names = new ArrayList<>();
+        for (MBeanAttributeInfo attr: connection.getMBeanInfo(mbean).getAttributes()) {
+            if (attr.isReadable() && attr.getType().startsWith("java.lang.")) {
+                names.add(attr.getName());
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    // Class and method of an MBean registered per class or method, as in attribute names
+    private static String prefix(ObjectName mbean) {
+        String clazz = mbean.getKeyProperty("class");
+        String method = mbean.getKeyProperty("method");
+        return (clazz != null ? clazz + "." : "") + (method != null ? method + "." : "");
+    }
+
+    private static boolean isCounter(String name) {
+        for (String suffix: COUNTERS) {
+            if (name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void fetchAndPrintItems(MBeanServerConnection connection, ObjectName query) {
         System.out.print("Application statistics [JMX] - ");
         System.out.print(new java.sql.Timestamp(System.currentTimeMillis()));
         System.out.println(":\n");
 
         try {
-            ObjectName query = new ObjectName("byteman:type=Statistics");
             Set<ObjectName> mbeanNames = connection.queryNames(query, null);
             for (ObjectName mbean: mbeanNames) {
                 try {
@@ -58,9 +190,13 @@ public class MBean2TXT {
                             System.err.println("Skipping unreadable attribute: " + attr.getName());
                             continue;
                         }
+                        // Bulk snapshot of the other attributes
+                        if (attr.getType().equals(CompositeData.class.getName())) {
+                            continue;
+                        }
                         try {
                             Object value = connection.getAttribute(mbean, attr.getName());
-                            printItem(mbean, attr, value.toString());
+                            printItem(mbean, attr, format(value));
                         } catch (Exception ex) { ex.printStackTrace(); }
                     }
                 } catch (Exception ex) { ex.printStackTrace(); }
@@ -70,6 +206,22 @@ public class MBean2TXT {
         System.out.println();
     }
 
+    // Rows of tables on their own lines
+    private static String format(Object value) {
+        if (!(value instanceof TabularData)) {
+            return value.toString();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Object row: ((TabularData) value).values()) {
+            CompositeData data = (CompositeData) row;
+            sb.append("\n   ");
+            for (String key: data.getCompositeType().keySet()) {
+                sb.append(" ").append(key).append("=").append(data.get(key));
+            }
+        }
+        return sb.toString();
+    }
+
     private static void printItem(ObjectName mbean, MBeanAttributeInfo attr, String value) {
         System.out.println(attr.getDescription() + " [" + attr.getName() + "] : " + value);
     }
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Stand-in for a StatsD agent to check what the helper sends with the
+ * --statsd option: prints every datagram received with its size and
+ * number of lines.
+ *
+ * javac StatsDListener.java
+ * java StatsDListener [port]
+ */
+public class StatsDListener {
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8125;
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.bind(new InetSocketAddress("127.0.0.1", port));
+            ByteBuffer buffer = ByteBuffer.allocate(65536);
+            while (true) {
+                buffer.clear();
+                channel.receive(buffer);
+                buffer.flip();
+                String datagram = StandardCharsets.UTF_8.decode(buffer).toString();
+                System.out.print("Datagram [" + new java.sql.Timestamp(System.currentTimeMillis()) + "] ");
+                System.out.println(buffer.limit() + " bytes, " + datagram.split("\n").length + " lines:");
+                System.out.println(datagram);
+            }
+        } catch (Exception ex) { ex.printStackTrace(); }
+    }
+}
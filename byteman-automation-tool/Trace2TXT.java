@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Prints the method call trace written by the helper with the
+ * --call-trace option in chronological order, with execution times of
+ * exits matched to their entries on each thread.
+ *
+ * javac Trace2TXT.java
+ * java Trace2TXT [trace file]
+ */
+public class Trace2TXT {
+    private static final int MAGIC = 0x52544d42;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final String[] TYPES = { "?", "entry", "exit", "exception" };
+
+    public static void main(String[] args) {
+        String fileName = args.length > 0 ? args[0] : "proftool.trace";
+        try {
+            Map<Integer, String> names = readNames(new File(fileName + ".names"));
+            printTrace(new File(fileName), names);
+        } catch (Exception ex) { ex.printStackTrace(); }
+    }
+
+    private static Map<Integer, String> readNames(File file) throws IOException {
+        Map<Integer, String> names = new HashMap<>();
+        if (file.exists()) {
+            for (String line: Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                int i = line.indexOf(' ');
+                names.put(Integer.parseInt(line.substring(0, i)), line.substring(i + 1));
+            }
+        }
+        return names;
+    }
+
+    // 16-bit hash of the fields of a record, as written by the helper
+    private static int check(long[] r) {
+        long h = r[0] * 0x9E3779B97F4A7C15L;
+        h = (h ^ r[1]) * 0x9E3779B97F4A7C15L;
+        h = (h ^ (r[2] << 32 | r[3] & 0xffffffffL)) * 0x9E3779B97F4A7C15L;
+        h = (h ^ (r[4] << 32 | r[5] & 0xffffffffL)) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 48);
+    }
+
+    private static void printTrace(File file, Map<Integer, String> names) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a trace file: " + file);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported trace file version " + buffer.getInt(4) + ": " + file);
+        }
+        int recordSize = buffer.getInt(8);
+        long capacity = buffer.getLong(16);
+        long startNanos = buffer.getLong(24);
+        long startMillis = buffer.getLong(32);
+
+        // Copy the valid records, slots being written have no sequence number
+        List<long[]> records = new ArrayList<>();
+        for (long slot = 0; slot < capacity; slot++) {
+            int pos = (int) (HEADER_SIZE + slot * recordSize);
+            long seq = buffer.getLong(pos);
+            if (seq == 0 || ((seq - 1) & (capacity - 1)) != slot) {
+                continue;
+            }
+            int typeCheck = buffer.getInt(pos + 24);
+            long[] r = { seq, buffer.getLong(pos + 8), buffer.getInt(pos + 16), buffer.getInt(pos + 20), typeCheck & 0xffff, buffer.getInt(pos + 28) };
+            // Records written by two threads at once or caught mid-write fail the check
+            if (buffer.getLong(pos) == seq && typeCheck >>> 16 == check(r)) {
+                records.add(r);
+            }
+        }
+        records.sort((a, b) -> Long.compare(a[0], b[0]));
+
+        System.out.print("Method call trace started ");
+        System.out.print(new java.sql.Timestamp(startMillis));
+        System.out.println(", " + records.size() + " records:\n");
+
+        Map<Long, Deque<long[]>> stacks = new HashMap<>();
+        for (long[] r: records) {
+            long time = r[1];
+            long thread = r[2];
+            int id = (int) r[3];
+            int type = (int) r[4];
+            String name = names.getOrDefault(id, "#" + id);
+            StringBuilder line = new StringBuilder();
+            line.append(String.format("%16.6f ms  thread %-6d %-9s %s", (time - startNanos) / 1e6, thread, TYPES[type < TYPES.length ? type : 0], name));
+            Deque<long[]> stack = stacks.computeIfAbsent(thread, t -> new ArrayDeque<>());
+            if (type == 1) {
+                if (r[5] != 0) {
+                    line.append(String.format("  args %08x", r[5]));
+                }
+                stack.push(r);
+            } else {
+                // Entries overwritten in the ring or of untraced callers are skipped
+                while (!stack.isEmpty() && stack.peek()[3] != id) {
+                    stack.pop();
+                }
+                if (!stack.isEmpty()) {
+                    line.append(String.format("  %d ns", time - stack.pop()[1]));
+                }
+            }
+            System.out.println(line);
+        }
+    }
+}
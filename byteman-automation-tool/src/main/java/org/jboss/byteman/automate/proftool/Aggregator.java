@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Buffered recording of method events: instrumented threads append
+ * events to their own EventBuffer and a background thread drains all
+ * buffers into the metric store every drain interval, so the hot path
+ * touches none of the shared counters and execution time records,
+ * other per-method state such as the calls in flight still being
+ * updated directly. Metrics read over JMX are thus at most one
+ * interval stale. Buffers of exited threads are drained once more
+ * before being dropped and all buffers are drained when the aggregator
+ * stops, so no event is lost.
+ */
+final class Aggregator implements Runnable {
+    private final MetricStore store;
+    private final long intervalNanos;
+    private final ConcurrentLinkedQueue<EventBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<EventBuffer> threadBuffers = ThreadLocal.withInitial(this::newBuffer);
+    private volatile Thread aggregator;
+
+    Aggregator(MetricStore store, long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Drain interval must be positive: " + intervalMillis);
+        }
+        this.store = store;
+        this.intervalNanos = intervalMillis * 1_000_000;
+    }
+
+    private EventBuffer newBuffer() {
+        EventBuffer buffer = new EventBuffer(Thread.currentThread());
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    // False if the event could not be buffered and must be recorded directly
+    boolean append(int type, int id, int weight, long value) {
+        return threadBuffers.get().append(type, id, weight, value);
+    }
+
+    public void run() {
+        Thread self = Thread.currentThread();
+        while (aggregator == self) {
+            LockSupport.parkNanos(intervalNanos);
+            drain();
+        }
+    }
+
+    private synchronized void drain() {
+        for (Iterator<EventBuffer> iter = buffers.iterator(); iter.hasNext(); ) {
+            EventBuffer buffer = iter.next();
+            // Check first so no event appended before exiting is missed
+            boolean alive = buffer.isOwnerAlive();
+            buffer.drain(store);
+            if (!alive) {
+                iter.remove();
+            }
+        }
+    }
+
+    synchronized void start() {
+        if (aggregator == null) {
+            aggregator = new Thread(this, "ProfTool event aggregator");
+            aggregator.setDaemon(true);
+            aggregator.start();
+        }
+    }
+
+    synchronized void stop() {
+        Thread t = aggregator;
+        aggregator = null;
+        LockSupport.unpark(t);
+        drain();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.util.Arrays;
+
+/*
+ * Per-thread stack of method call start times and metric IDs. Only
+ * ever accessed by its owning thread so no synchronization is needed,
+ * and entries are kept as primitives to avoid any allocation on
+ * push/pop once the stack has grown to the deepest instrumented
+ * nesting level.
+ */
+final class CallStack {
+    private static final int INITIAL_DEPTH = 16;
+
+    // Start time of a call left out by sampling
+    static final long SKIPPED = Long.MIN_VALUE;
+
+    private int[] ids = new int[INITIAL_DEPTH];
+    private long[] times = new long[INITIAL_DEPTH];
+    private int[] weights = new int[INITIAL_DEPTH];
+    private CallTree.Node[] nodes = new CallTree.Node[INITIAL_DEPTH];
+    private Object[] dims = new Object[INITIAL_DEPTH];
+    private CallTree tree = null;
+    private CallTree.Node root = null;
+    private int depth = 0;
+    // Argument values of the call about to exit, see stashArgs
+    private int argCount = 0;
+    private Object arg0, arg1, arg2;
+
+    void push(int id, long time, int weight) {
+        if (depth == times.length) {
+            ids = Arrays.copyOf(ids, depth * 2);
+            times = Arrays.copyOf(times, depth * 2);
+            weights = Arrays.copyOf(weights, depth * 2);
+            nodes = Arrays.copyOf(nodes, depth * 2);
+            dims = Arrays.copyOf(dims, depth * 2);
+        }
+        nodes[depth] = null;
+        dims[depth] = null;
+        ids[depth] = id;
+        weights[depth] = weight;
+        times[depth++] = time;
+    }
+
+    // Places the innermost call in the thread's call tree
+    void enter(CallTree tree) {
+        CallTree.Node parent = depth > 1 ? nodes[depth - 2] : null;
+        if (parent == null) {
+            if (this.tree != tree) {
+                this.tree = tree;
+                root = tree.newRoot();
+            }
+            parent = root;
+        }
+        nodes[depth - 1] = parent.child(ids[depth - 1]);
+    }
+
+    // Call tree node of the innermost call, null if not in a tree
+    CallTree.Node topNode() {
+        return nodes[depth - 1];
+    }
+
+    // Dimension value of the innermost call as counted by TopK, null if none
+    Object topDim() {
+        return dims[depth - 1];
+    }
+
+    void setTopDim(Object dim) {
+        dims[depth - 1] = dim;
+    }
+
+    // Passed by the exit rules just before recording the exec time
+    void stashArgs(int count, Object a0, Object a1, Object a2) {
+        argCount = count;
+        arg0 = a0;
+        arg1 = a1;
+        arg2 = a2;
+    }
+
+    // String values of the stashed arguments, null if none stashed
+    String[] takeArgs() {
+        if (argCount == 0) {
+            return null;
+        }
+        String[] args = new String[argCount];
+        Object[] values = { arg0, arg1, arg2 };
+        for (int i = 0; i < argCount; i++) {
+            args[i] = String.valueOf(values[i]);
+        }
+        return args;
+    }
+
+    void clearArgs() {
+        if (argCount > 0) {
+            argCount = 0;
+            arg0 = arg1 = arg2 = null;
+        }
+    }
+
+    // Number of calls the innermost call stands for when sampling
+    int topWeight() {
+        return weights[depth - 1];
+    }
+
+    long pop() {
+        return times[--depth];
+    }
+
+    // True if the innermost recorded call is one of the given metric
+    boolean isTop(int id) {
+        return depth > 0 && ids[depth - 1] == id;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Call tree of the instrumented methods, each path from a root to a
+ * node having its own call count and inclusive time. Every thread
+ * builds its own tree as it calls the methods so recording takes no
+ * locks and touches no shared counters; the trees are merged when
+ * exported. Nodes are only written by their owning thread and their
+ * counters are read unsynchronized, an export may thus miss the most
+ * recent calls. Trees of exited threads are folded into one retired
+ * tree so that pools of short-lived threads do not add up.
+ */
+final class CallTree {
+    private final ConcurrentLinkedQueue<ThreadTree> trees = new ConcurrentLinkedQueue<>();
+    private final Node retired = new Node(-1);
+
+    static final class Node {
+        private static final Node[] NONE = new Node[0];
+
+        final int id;
+        long calls;
+        long time;
+        private volatile Node[] children = NONE;
+
+        Node(int id) {
+            this.id = id;
+        }
+
+        Node child(int id) {
+            Node[] c = children;
+            for (Node n: c) {
+                if (n.id == id) {
+                    return n;
+                }
+            }
+            Node n = new Node(id);
+            c = Arrays.copyOf(c, c.length + 1);
+            c[c.length - 1] = n;
+            children = c;
+            return n;
+        }
+
+        Node[] children() {
+            return children;
+        }
+
+        // Time not spent in instrumented callees
+        long selfTime() {
+            long self = time;
+            for (Node n: children) {
+                self -= n.time;
+            }
+            return Math.max(self, 0);
+        }
+
+        void mergeInto(Node target) {
+            target.calls += calls;
+            target.time += time;
+            for (Node n: children) {
+                n.mergeInto(target.child(n.id));
+            }
+        }
+    }
+
+    private static final class ThreadTree {
+        final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+        final Node root = new Node(-1);
+    }
+
+    // Root of the tree of the calling thread, called once per thread
+    Node newRoot() {
+        ThreadTree tree = new ThreadTree();
+        trees.add(tree);
+        return tree.root;
+    }
+
+    synchronized Node merged() {
+        Node merged = new Node(-1);
+        for (Iterator<ThreadTree> iter = trees.iterator(); iter.hasNext(); ) {
+            ThreadTree tree = iter.next();
+            Thread t = tree.owner.get();
+            if (t == null || !t.isAlive()) {
+                tree.root.mergeInto(retired);
+                iter.remove();
+            } else {
+                tree.root.mergeInto(merged);
+            }
+        }
+        retired.mergeInto(merged);
+        return merged;
+    }
+
+    /*
+     * Collapsed stacks as read by flamegraph.pl and most flame graph
+     * viewers, one "root;...;method self-time" line per call path.
+     */
+    String collapsed(MetricStore store) {
+        StringBuilder sb = new StringBuilder();
+        for (Node n: merged().children()) {
+            appendCollapsed(sb, store, n, "");
+        }
+        return sb.toString();
+    }
+
+    private static void appendCollapsed(StringBuilder sb, MetricStore store, Node node, String prefix) {
+        String path = prefix + name(store, node.id);
+        long self = node.selfTime();
+        if (self > 0) {
+            sb.append(path).append(' ').append(self).append('\n');
+        }
+        for (Node n: node.children()) {
+            appendCollapsed(sb, store, n, path + ";");
+        }
+    }
+
+    /*
+     * Chrome trace event JSON, as loaded by chrome://tracing and
+     * Perfetto, laying out each call path as one complete event with
+     * its total time, children placed one after another inside their
+     * parent.
+     */
+    String chromeTrace(MetricStore store, String unit) {
+        double micros = unit.equals("ms") ? 1000.0 : 0.001;
+        StringBuilder sb = new StringBuilder("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[");
+        long ts = 0;
+        for (Node n: merged().children()) {
+            ts = appendEvents(sb, store, n, ts, micros);
+        }
+        if (sb.charAt(sb.length() - 1) == ',') {
+            sb.setLength(sb.length() - 1);
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static long appendEvents(StringBuilder sb, MetricStore store, Node node, long ts, double micros) {
+        sb.append(String.format(Locale.ROOT, "{\"name\":\"%s\",\"ph\":\"X\",\"pid\":1,\"tid\":1,\"ts\":%.3f,\"dur\":%.3f,\"args\":{\"calls\":%d,\"self\":%d}},",
+            escape(name(store, node.id)), ts * micros, node.time * micros, node.calls, node.selfTime()));
+        long child = ts;
+        for (Node n: node.children()) {
+            child = appendEvents(sb, store, n, child, micros);
+        }
+        return ts + Math.max(node.time, child - ts);
+    }
+
+    // JSON string contents, method names may contain quotes or backslashes
+    private static String escape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c < ' ') {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String name(MetricStore store, int id) {
+        MethodMetrics m = store.methodMetrics(id);
+        return m != null ? m.name : "method" + id;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Metrics of one monitored class, indexed by the class ID assigned by
+ * RuleCreator.
+ */
+final class ClassMetrics {
+    // Kinds of metrics recorded, see seen()
+    static final int INSTANCES = 1;
+    static final int LIFETIMES = 2;
+
+    final String name;
+    private final MetricStore store;
+    private volatile int seen = 0;
+    final LongAdder instances = new LongAdder();
+    final LongAdder instancesDone = new LongAdder();
+    final StatsCell lifetimes = new StatsCell();
+    final Histogram lifetimesHist = new Histogram();
+
+    // Cumulative values at the last reset, subtracted when reporting
+    private volatile Totals base = Totals.ZERO;
+
+    ClassMetrics(String name, MetricStore store) {
+        this.name = name;
+        this.store = store;
+    }
+
+    // Notes kinds of metrics recorded, announcing the first ones to the store
+    void seen(int kind) {
+        if ((seen & kind) != kind) {
+            markSeen(kind);
+        }
+    }
+
+    private synchronized void markSeen(int kind) {
+        seen |= kind;
+        store.changed();
+    }
+
+    boolean hasSeen(int kinds) {
+        return (seen & kinds) != 0;
+    }
+
+    // Reported values of the counters, see MethodMetrics.Totals
+    static final class Totals {
+        static final Totals ZERO = new Totals(0, new StatsCell.Snapshot(), Histogram.Delta.EMPTY);
+
+        final long instances;
+        final StatsCell.Snapshot lifetimes;
+        final Histogram.Delta lifetimesHist;
+
+        Totals(long instances, StatsCell.Snapshot lifetimes, Histogram.Delta lifetimesHist) {
+            this.instances = instances;
+            this.lifetimes = lifetimes;
+            this.lifetimesHist = lifetimesHist;
+        }
+    }
+
+    long instances() {
+        return instances.sum() - base.instances;
+    }
+
+    // Live instances are a level, not a count, and are never reset
+    long liveInstances() {
+        return instances.sum() - instancesDone.sum();
+    }
+
+    StatsCell.Snapshot lifetimeSnapshot() {
+        return lifetimes.snapshot().minus(base.lifetimes);
+    }
+
+    long lifetimePercentile(double percentile) {
+        long[] counts = lifetimesHist.counts();
+        base.lifetimesHist.addTo(counts, -1);
+        return Histogram.percentile(counts, percentile);
+    }
+
+    // Values since the last reset, see MethodMetrics.totals
+    synchronized Totals totals(boolean reset) {
+        Totals b = base;
+        long instances = this.instances.sum();
+        StatsCell.Snapshot lifetimes = this.lifetimes.snapshot(reset);
+        long[] counts = lifetimesHist.counts();
+        long[] baseCounts = new long[counts.length];
+        b.lifetimesHist.addTo(baseCounts, 1);
+        if (reset) {
+            base = new Totals(instances, lifetimes, Histogram.Delta.of(counts));
+        }
+        return new Totals(instances - b.instances, lifetimes.minus(b.lifetimes), Histogram.Delta.between(baseCounts, counts));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Time source for all recorded times. The clock is selected when the
+ * MBean gets registered and its unit is reported in attribute metadata.
+ */
+abstract class Clock {
+    static final String MILLIS = "millis";
+    static final String NANOS = "nanos";
+    static final String COARSE = "coarse";
+
+    abstract long time();
+
+    // Unit of the values returned by time(), as used in JMX descriptors
+    abstract String unit();
+
+    // Length of the unit in seconds, for exporters reporting in seconds
+    double unitSeconds() {
+        return unit().equals("ms") ? 1e-3 : 1e-9;
+    }
+
+    void start() {
+    }
+
+    void stop() {
+    }
+
+    static Clock forName(String name, long tickMicros) {
+        if (name.equals(MILLIS)) {
+            return new MillisClock();
+        } else if (name.equals(NANOS)) {
+            return new NanoClock();
+        } else if (name.equals(COARSE)) {
+            return new CoarseClock(tickMicros * 1000);
+        }
+        throw new IllegalArgumentException("Unknown clock: " + name);
+    }
+
+    static final class MillisClock extends Clock {
+        long time() {
+            return System.currentTimeMillis();
+        }
+
+        String unit() {
+            return "ms";
+        }
+    }
+
+    static final class NanoClock extends Clock {
+        long time() {
+            return System.nanoTime();
+        }
+
+        String unit() {
+            return "ns";
+        }
+    }
+
+    /*
+     * Clock for very hot methods: reading the time is a plain volatile
+     * read of a value a background thread refreshes from System.nanoTime
+     * every tick, so the resolution is the tick interval.
+     */
+    static final class CoarseClock extends Clock implements Runnable {
+        private final long tickNanos;
+        private volatile Thread ticker;
+        private volatile long now = System.nanoTime();
+
+        CoarseClock(long tickNanos) {
+            if (tickNanos <= 0) {
+                throw new IllegalArgumentException("Clock tick must be positive: " + tickNanos);
+            }
+            this.tickNanos = tickNanos;
+        }
+
+        public void run() {
+            Thread self = Thread.currentThread();
+            while (ticker == self) {
+                now = System.nanoTime();
+                LockSupport.parkNanos(tickNanos);
+            }
+        }
+
+        long time() {
+            return now;
+        }
+
+        String unit() {
+            return "ns";
+        }
+
+        synchronized void start() {
+            if (ticker == null) {
+                now = System.nanoTime();
+                ticker = new Thread(this, "ProfTool coarse clock");
+                ticker.setDaemon(true);
+                ticker.start();
+            }
+        }
+
+        synchronized void stop() {
+            Thread t = ticker;
+            ticker = null;
+            LockSupport.unpark(t);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Single producer, single consumer ring of method events owned by one
+ * instrumented thread and drained by the Aggregator. An event takes two
+ * longs, the method ID and weight and the event type and value, so
+ * appending one is two array stores and an ordered store of the tail.
+ * When the ring is full the event is not buffered and the caller
+ * records it directly.
+ */
+final class EventBuffer {
+    static final int CALL = 1;
+    static final int EXEC_TIME = 2;
+    static final int EXEC_TIME_HIST = 3;
+    static final int EXIT_EXCEPT = 4;
+
+    private static final int CAPACITY = 1024;
+    private static final int TYPE_SHIFT = 60;
+    private static final long VALUE_MASK = (1L << TYPE_SHIFT) - 1;
+
+    private final long[] events = new long[CAPACITY * 2];
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final WeakReference<Thread> owner;
+    // Consumer position as last seen by the producer
+    private long headCache = 0;
+
+    EventBuffer(Thread owner) {
+        this.owner = new WeakReference<>(owner);
+    }
+
+    boolean append(int type, int id, int weight, long value) {
+        long t = tail.get();
+        if (t - headCache == CAPACITY) {
+            headCache = head.get();
+            if (t - headCache == CAPACITY) {
+                return false;
+            }
+        }
+        int i = (int) (t & (CAPACITY - 1)) * 2;
+        events[i] = (long) id << 32 | weight;
+        events[i + 1] = (long) type << TYPE_SHIFT | (Math.max(value, 0) & VALUE_MASK);
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // Records all buffered events to the store, only ever called by one thread
+    void drain(MetricStore store) {
+        long h = head.get();
+        long t = tail.get();
+        for (; h < t; h++) {
+            int i = (int) (h & (CAPACITY - 1)) * 2;
+            int id = (int) (events[i] >>> 32);
+            int weight = (int) events[i];
+            int type = (int) (events[i + 1] >>> TYPE_SHIFT);
+            long value = events[i + 1] & VALUE_MASK;
+            MethodMetrics m = store.methodMetrics(id);
+            if (m != null) {
+                apply(m, type, weight, value);
+            }
+        }
+        head.lazySet(t);
+    }
+
+    static void apply(MethodMetrics m, int type, int weight, long value) {
+        switch (type) {
+        case CALL:
+            m.recordCall(weight);
+            break;
+        case EXEC_TIME:
+        case EXEC_TIME_HIST:
+            m.recordExecTime(value, weight, type == EXEC_TIME_HIST);
+            break;
+        case EXIT_EXCEPT:
+            m.recordExitExcept(weight);
+            break;
+        }
+    }
+
+    boolean isOwnerAlive() {
+        Thread t = owner.get();
+        return t != null && t.isAlive();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Striped up/down counter with the highest value it has been seen at
+ * since the last reset. Like StatsCell a gauge starts with one stripe
+ * and adds stripes once threads are seen contending on it; the value is
+ * the sum of the stripes so a call may be counted in one stripe and
+ * uncounted in another. After an increment the stripes are summed and
+ * the single peak updated only when exceeded, so the peak is a value
+ * the gauge actually had, give or take the calls starting or ending
+ * while the stripes are summed.
+ */
+final class Gauge {
+    private static final int STRIDE = 16;
+    private static final int VALUE = 0;
+
+    private volatile AtomicLongArray[] stripes = { new AtomicLongArray(STRIDE) };
+    private final AtomicLong peak = new AtomicLong();
+
+    void increment() {
+        AtomicLongArray[] s = stripes;
+        long value = add(s, s[Stripes.index(s.length)], 1);
+        if (s.length > 1) {
+            value = value();
+        }
+        for (long p = peak.get(); value > p; p = peak.get()) {
+            if (peak.compareAndSet(p, value)) {
+                break;
+            }
+        }
+    }
+
+    void decrement() {
+        AtomicLongArray[] s = stripes;
+        add(s, s[Stripes.index(s.length)], -1);
+    }
+
+    // Returns the new value of the stripe
+    private long add(AtomicLongArray[] s, AtomicLongArray stripe, long delta) {
+        long v = stripe.get(VALUE);
+        if (stripe.compareAndSet(VALUE, v, v + delta)) {
+            return v + delta;
+        }
+        v = stripe.addAndGet(VALUE, delta);
+        grow(s);
+        return v;
+    }
+
+    private synchronized void grow(AtomicLongArray[] seen) {
+        if (stripes != seen || seen.length >= Stripes.MAX) {
+            return;
+        }
+        AtomicLongArray[] s = new AtomicLongArray[seen.length * 2];
+        System.arraycopy(seen, 0, s, 0, seen.length);
+        for (int i = seen.length; i < s.length; i++) {
+            s[i] = new AtomicLongArray(STRIDE);
+        }
+        stripes = s;
+    }
+
+    long value() {
+        long sum = 0;
+        for (AtomicLongArray stripe: stripes) {
+            sum += stripe.get(VALUE);
+        }
+        return sum;
+    }
+
+    long peak() {
+        return peak.get();
+    }
+
+    // Starts tracking the peak over again from the current value
+    void resetPeak() {
+        peak.set(value());
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Safety net against instrumenting methods too hot to afford it. Once
+ * a second the governor compares the events each method recorded with
+ * the budget and downgrades any method over it: first by sampling its
+ * calls in the helper, doubling the rate until the method fits the
+ * budget, and once even MAX_RATE is not enough by stopping its timing
+ * altogether, keeping only the (sampled) counts. A method whose rate
+ * falls well under the budget again is upgraded step by step the same
+ * way back, with enough headroom left not to flip between the steps.
+ * The modes are reported over JMX and restarted when the rules are
+ * reloaded.
+ *
+ * The budget is either recorded events per second or estimated
+ * nanoseconds per second, the latter based on the cost of recording an
+ * event in the helper as measured by the governor thread when first
+ * started, not by the application thread registering the helper. The
+ * cost of Byteman executing the rule itself is not included.
+ */
+final class Governor implements Runnable {
+    static final int MAX_RATE = 1024;
+
+    static final String FULL = "full";
+    static final String SAMPLED = "sampled";
+    static final String COUNT_ONLY = "count-only";
+
+    private static final long INTERVAL = 1_000_000_000L;
+    private static final int CALIBRATION_EVENTS = 200_000;
+
+    private final MetricStore store;
+    private final Clock clock;
+    private final long eventBudget;
+    private final long nanoBudget;
+    // Set once calibrated by the governor thread
+    private volatile long eventNanos = 0;
+    private double eventsPerSecond;
+    private volatile Thread governor;
+    private long[] lastEvents = new long[0];
+    private long lastTime;
+
+    Governor(MetricStore store, Clock clock, long eventBudget, long nanoBudget) {
+        if (eventBudget < 0 || nanoBudget < 0) {
+            throw new IllegalArgumentException("Budget must not be negative: " + eventBudget + "/" + nanoBudget);
+        }
+        this.store = store;
+        this.clock = clock;
+        this.eventBudget = eventBudget;
+        this.nanoBudget = nanoBudget;
+    }
+
+    private void calibrate() {
+        long nanos = calibrate(clock);
+        double limit = eventBudget > 0 ? eventBudget : Double.MAX_VALUE;
+        if (nanoBudget > 0) {
+            limit = Math.min(limit, (double) nanoBudget / nanos);
+        }
+        eventsPerSecond = limit;
+        eventNanos = nanos;
+    }
+
+    // Nanoseconds spent recording a timed call in the helper
+    private static long calibrate(Clock clock) {
+        MethodMetrics m = new MethodMetrics("calibration", new MetricStore());
+        long start = System.nanoTime();
+        for (int i = 0; i < CALIBRATION_EVENTS; i++) {
+            long time = clock.time();
+            m.execTimes.record(clock.time() - time);
+            m.execTimesHist.record(i);
+            m.events.increment();
+        }
+        return Math.max((System.nanoTime() - start) / CALIBRATION_EVENTS, 1);
+    }
+
+    static String mode(MethodMetrics m) {
+        return !m.timed ? COUNT_ONLY : m.governRate > 1 ? SAMPLED : FULL;
+    }
+
+    // Zero until calibrated
+    long eventNanos() {
+        return eventNanos;
+    }
+
+    // Back to recording every call of every method, as when the rules are reloaded
+    void restart() {
+        for (MethodMetrics m: store.methods()) {
+            if (m != null) {
+                m.governRate = 1;
+                m.timed = true;
+            }
+        }
+    }
+
+    public void run() {
+        if (eventNanos == 0) {
+            calibrate();
+        }
+        Thread self = Thread.currentThread();
+        while (governor == self) {
+            LockSupport.parkNanos(INTERVAL);
+            if (governor == self) {
+                govern();
+            }
+        }
+    }
+
+    private void govern() {
+        long now = System.nanoTime();
+        double seconds = (now - lastTime) / 1e9;
+        lastTime = now;
+        MethodMetrics[] methods = store.methods();
+        if (lastEvents.length < methods.length) {
+            lastEvents = Arrays.copyOf(lastEvents, methods.length);
+        }
+        for (int i = 0; i < methods.length; i++) {
+            MethodMetrics m = methods[i];
+            if (m == null) {
+                continue;
+            }
+            long events = m.events.sum();
+            double rate = (events - lastEvents[i]) / seconds;
+            lastEvents[i] = events;
+            m.eventRate = (long) rate;
+            if (rate > eventsPerSecond) {
+                downgrade(m, rate / eventsPerSecond);
+            } else if (!m.timed || m.governRate > 1) {
+                upgrade(m, rate > 0 ? eventsPerSecond / rate : Double.MAX_VALUE);
+            }
+        }
+    }
+
+    static void downgrade(MethodMetrics m, double excess) {
+        long rate = m.governRate;
+        while (excess > 1 && rate <= MAX_RATE) {
+            rate *= 2;
+            excess /= 2;
+        }
+        if (rate <= MAX_RATE) {
+            m.governRate = (int) rate;
+        } else if (m.timed) {
+            // Timing the calls is what costs, start over with counts only
+            m.timed = false;
+            m.governRate = 1;
+        } else {
+            m.governRate = MAX_RATE;
+        }
+        if (m.governRate > 1) {
+            m.seen(MethodMetrics.SAMPLED);
+        }
+    }
+
+    /*
+     * Halves the sampling rate while the doubled events still leave half
+     * of the budget unused. Counting only at rate records MAX_RATE / rate
+     * times the events of timing at MAX_RATE, where timing resumes once
+     * that too leaves half of the budget unused.
+     */
+    static void upgrade(MethodMetrics m, double headroom) {
+        long rate = m.governRate;
+        boolean timed = m.timed;
+        if (!timed) {
+            headroom *= (double) MAX_RATE / rate;
+            if (headroom < 2) {
+                return;
+            }
+            rate = MAX_RATE;
+            timed = true;
+        }
+        while (headroom >= 4 && rate > 1) {
+            rate /= 2;
+            headroom /= 2;
+        }
+        m.governRate = (int) rate;
+        m.timed = timed;
+    }
+
+    synchronized void start() {
+        if (governor == null) {
+            lastTime = System.nanoTime();
+            governor = new Thread(this, "ProfTool overhead governor");
+            governor.setDaemon(true);
+            governor.start();
+        }
+    }
+
+    synchronized void stop() {
+        Thread t = governor;
+        governor = null;
+        LockSupport.unpark(t);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Options passed to the helper as a single string of key=value pairs
+ * separated by semicolons, for settings that are not simple on/off
+ * switches of the recorded metrics.
+ */
+final class HelperOptions {
+    private static final String SEP = ";";
+    private static final String KV_SEP = "=";
+
+    private final Map<String, String> values = new HashMap<>();
+
+    HelperOptions(String options) {
+        for (String option: options.split(SEP)) {
+            option = option.trim();
+            if (option.isEmpty()) {
+                continue;
+            }
+            int i = option.indexOf(KV_SEP);
+            if (i <= 0) {
+                throw new IllegalArgumentException("Malformed helper option: " + option);
+            }
+            values.put(option.substring(0, i).trim(), option.substring(i + 1).trim());
+        }
+    }
+
+    String get(String key, String dfl) {
+        String value = values.get(key);
+        return value != null ? value : dfl;
+    }
+
+    long getLong(String key, long dfl) {
+        String value = values.get(key);
+        try {
+            return value != null ? Long.parseLong(value) : dfl;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Helper option " + key + " requires a number: " + value);
+        }
+    }
+}
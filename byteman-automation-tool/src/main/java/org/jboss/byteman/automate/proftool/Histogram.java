@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Log-linear histogram in the style of HdrHistogram. Values are
+ * grouped by their power of two and each power of two is split into
+ * SUB_COUNT linear sub-buckets, bounding the relative error of any
+ * reported percentile to 1 / SUB_COUNT. Rows of buckets are allocated
+ * only once a value in their range is seen so a histogram of a method
+ * with a narrow latency range stays small.
+ *
+ * Recording is lock-free; like LongAdder the buckets are striped over
+ * additional copies once threads are seen contending on a bucket.
+ */
+final class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    static final int ROWS = 64 - SUB_BITS;
+    static final int BUCKETS = ROWS * SUB_COUNT;
+
+    private volatile AtomicReferenceArray<AtomicLongArray>[] stripes = newStripes(1);
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static AtomicReferenceArray<AtomicLongArray>[] newStripes(int count) {
+        AtomicReferenceArray<AtomicLongArray>[] s = new AtomicReferenceArray[count];
+        for (int i = 0; i < count; i++) {
+            s[i] = new AtomicReferenceArray<>(ROWS);
+        }
+        return s;
+    }
+
+    static int row(long value) {
+        if (value < SUB_COUNT) {
+            return 0;
+        }
+        return 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    }
+
+    static int sub(long value, int row) {
+        if (row == 0) {
+            return (int) value;
+        }
+        return (int) (value >>> (row - 1)) - SUB_COUNT;
+    }
+
+    // Highest value that would be recorded in the given bucket
+    static long highestValue(int bucket) {
+        int row = bucket / SUB_COUNT;
+        int sub = bucket % SUB_COUNT;
+        if (row == 0) {
+            return sub;
+        }
+        return ((long) (SUB_COUNT + sub + 1) << (row - 1)) - 1;
+    }
+
+    void record(long value) {
+        record(value, 1);
+    }
+
+    // Records a value standing for weight values, as when sampling
+    void record(long value, long weight) {
+        if (value < 0) {
+            value = 0;
+        }
+        int row = row(value);
+        int sub = sub(value, row);
+
+        AtomicReferenceArray<AtomicLongArray>[] s = stripes;
+        AtomicReferenceArray<AtomicLongArray> stripe = s[Stripes.index(s.length)];
+        AtomicLongArray buckets = stripe.get(row);
+        if (buckets == null) {
+            stripe.compareAndSet(row, null, new AtomicLongArray(SUB_COUNT));
+            buckets = stripe.get(row);
+        }
+        long count = buckets.get(sub);
+        if (!buckets.compareAndSet(sub, count, count + weight)) {
+            buckets.getAndAdd(sub, weight);
+            grow(s);
+        }
+    }
+
+    private synchronized void grow(AtomicReferenceArray<AtomicLongArray>[] seen) {
+        if (stripes != seen || seen.length >= Stripes.MAX) {
+            return;
+        }
+        AtomicReferenceArray<AtomicLongArray>[] s = newStripes(seen.length * 2);
+        System.arraycopy(seen, 0, s, 0, seen.length);
+        stripes = s;
+    }
+
+    // Bucket counts summed over all stripes, indexed row * SUB_COUNT + sub
+    long[] counts() {
+        return counts(new long[BUCKETS]);
+    }
+
+    // As counts(), into an array of BUCKETS counts reused by the caller
+    long[] counts(long[] counts) {
+        Arrays.fill(counts, 0);
+        for (AtomicReferenceArray<AtomicLongArray> stripe: stripes) {
+            for (int row = 0; row < ROWS; row++) {
+                AtomicLongArray buckets = stripe.get(row);
+                if (buckets == null) {
+                    continue;
+                }
+                for (int sub = 0; sub < SUB_COUNT; sub++) {
+                    counts[row * SUB_COUNT + sub] += buckets.get(sub);
+                }
+            }
+        }
+        return counts;
+    }
+
+    long percentile(double percentile) {
+        return percentile(counts(), percentile);
+    }
+
+    /*
+     * Difference of two counts() arrays keeping only the buckets that
+     * differ, so that a histogram change is stored in a few words.
+     */
+    static final class Delta {
+        static final Delta EMPTY = new Delta(new int[0], new long[0]);
+
+        final int[] buckets;
+        final long[] counts;
+
+        private Delta(int[] buckets, long[] counts) {
+            this.buckets = buckets;
+            this.counts = counts;
+        }
+
+        // Changes from from, null for no counts, to to
+        static Delta between(long[] from, long[] to) {
+            int n = 0;
+            for (int i = 0; i < to.length; i++) {
+                if (to[i] != (from != null ? from[i] : 0)) {
+                    n++;
+                }
+            }
+            int[] buckets = new int[n];
+            long[] counts = new long[n];
+            for (int i = 0, j = 0; i < to.length; i++) {
+                long base = from != null ? from[i] : 0;
+                if (to[i] != base) {
+                    buckets[j] = i;
+                    counts[j++] = to[i] - base;
+                }
+            }
+            return new Delta(buckets, counts);
+        }
+
+        static Delta of(long[] counts) {
+            return between(null, counts);
+        }
+
+        // Adds sign times the delta to counts
+        void addTo(long[] counts, long sign) {
+            for (int i = 0; i < buckets.length; i++) {
+                counts[buckets[i]] += sign * this.counts[i];
+            }
+        }
+    }
+
+    // Value at or below which the given percentage of counts fall
+    static long percentile(long[] counts, double percentile) {
+        long total = 0;
+        for (long count: counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestValue(i);
+            }
+        }
+        return highestValue(counts.length - 1);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+
+/*
+ * Sends a jmx.mbean.info.changed notification with the new MBeanInfo
+ * as user data when the attributes of the MBean have changed, so that
+ * clients can cache MBeanInfo until notified. The store version is
+ * compared from a background thread every CHECK_INTERVAL milliseconds
+ * as metrics are first recorded by instrumented threads, which only
+ * bump the version, and the MBeanInfo is compared only once the
+ * version has changed.
+ */
+final class InfoChangeNotifier implements Runnable {
+    static final String INFO_CHANGED = "jmx.mbean.info.changed";
+    static final MBeanNotificationInfo NOTIFICATION =
+        new MBeanNotificationInfo(new String[] { INFO_CHANGED }, Notification.class.getName(), "Attributes of the MBean changed");
+    private static final long CHECK_INTERVAL = 1000;
+
+    private final MetricStore store;
+    private final DynamicMBean mbean;
+    private final NotificationBroadcasterSupport broadcaster;
+    private final Object source;
+    private final AtomicLong sequence;
+    private long version;
+    private MBeanAttributeInfo[] attributes;
+    private volatile Thread notifier;
+
+    InfoChangeNotifier(MetricStore store, DynamicMBean mbean, NotificationBroadcasterSupport broadcaster, Object source, AtomicLong sequence) {
+        this.store = store;
+        this.mbean = mbean;
+        this.broadcaster = broadcaster;
+        this.source = source;
+        this.sequence = sequence;
+        this.version = store.version();
+        this.attributes = mbean.getMBeanInfo().getAttributes();
+    }
+
+    public void run() {
+        Thread self = Thread.currentThread();
+        while (notifier == self) {
+            LockSupport.parkNanos(CHECK_INTERVAL * 1_000_000L);
+            if (notifier == self) {
+                check();
+            }
+        }
+    }
+
+    synchronized void check() {
+        long version = store.version();
+        if (version == this.version) {
+            return;
+        }
+        this.version = version;
+        MBeanInfo info = mbean.getMBeanInfo();
+        MBeanAttributeInfo[] attributes = info.getAttributes();
+        if (sameNames(attributes, this.attributes)) {
+            return;
+        }
+        this.attributes = attributes;
+        Notification n = new Notification(INFO_CHANGED, source, sequence.incrementAndGet(), System.currentTimeMillis(),
+            "MBean now has " + attributes.length + " attributes");
+        n.setUserData(info);
+        broadcaster.sendNotification(n);
+    }
+
+    private static boolean sameNames(MBeanAttributeInfo[] a, MBeanAttributeInfo[] b) {
+        if (a.length != b.length) {
+            return false;
+        }
+        for (int i = 0; i < a.length; i++) {
+            if (!a[i].getName().equals(b[i].getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    synchronized void start() {
+        if (notifier == null) {
+            notifier = new Thread(this, "ProfTool MBean info notifier");
+            notifier.setDaemon(true);
+            notifier.start();
+        }
+    }
+
+    synchronized void stop() {
+        Thread t = notifier;
+        notifier = null;
+        LockSupport.unpark(t);
+    }
+}
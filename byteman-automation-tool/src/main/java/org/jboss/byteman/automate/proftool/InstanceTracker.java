@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.function.LongSupplier;
+
+/*
+ * Tracks instances of monitored classes until the garbage collector
+ * reclaims them, giving live counts and lifetimes for any class without
+ * keeping the instances alive. Each instance gets a phantom reference
+ * holding its class metrics and creation time; the references are kept
+ * reachable in striped intrusive lists, like java.lang.ref.Cleaner does,
+ * and a reaper thread records the lifetime of each one the collector
+ * enqueues.
+ */
+final class InstanceTracker implements Runnable {
+    // Creation time of instances tracked only for live counts
+    static final long NO_BIRTH = Long.MIN_VALUE;
+
+    private static final long REAP_TIMEOUT = 1000;
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    private final InstanceRef[] stripes = new InstanceRef[Stripes.MAX];
+    private final LongSupplier clock;
+    private volatile Thread reaper;
+
+    InstanceTracker(LongSupplier clock) {
+        this.clock = clock;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new InstanceRef(null, null, null, NO_BIRTH, i);
+        }
+    }
+
+    void track(ClassMetrics metrics, Object obj, long birth) {
+        metrics.instances.increment();
+        metrics.seen(ClassMetrics.INSTANCES);
+        InstanceRef head = stripes[Stripes.index(stripes.length)];
+        InstanceRef ref = new InstanceRef(obj, queue, metrics, birth, head.stripe);
+        synchronized (head) {
+            ref.next = head.next;
+            ref.prev = head;
+            if (head.next != null) {
+                head.next.prev = ref;
+            }
+            head.next = ref;
+        }
+    }
+
+    private boolean unlink(InstanceRef ref) {
+        synchronized (stripes[ref.stripe]) {
+            if (ref.prev == null) {
+                return false;
+            }
+            ref.prev.next = ref.next;
+            if (ref.next != null) {
+                ref.next.prev = ref.prev;
+            }
+            ref.prev = null;
+            ref.next = null;
+            return true;
+        }
+    }
+
+    public void run() {
+        Thread self = Thread.currentThread();
+        while (reaper == self) {
+            try {
+                Reference<?> r = queue.remove(REAP_TIMEOUT);
+                for (; r != null; r = queue.poll()) {
+                    InstanceRef ref = (InstanceRef) r;
+                    if (unlink(ref)) {
+                        ref.metrics.instancesDone.increment();
+                        if (ref.birth != NO_BIRTH) {
+                            long lifetime = clock.getAsLong() - ref.birth;
+                            ref.metrics.lifetimes.record(lifetime);
+                            ref.metrics.lifetimesHist.record(lifetime);
+                            ref.metrics.seen(ClassMetrics.LIFETIMES);
+                        }
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // Woken up by stop()
+            }
+        }
+    }
+
+    synchronized void start() {
+        if (reaper == null) {
+            reaper = new Thread(this, "ProfTool instance reaper");
+            reaper.setDaemon(true);
+            reaper.start();
+        }
+    }
+
+    /*
+     * Stops the reaper once the rules are unloaded. Tracked instances stay
+     * tracked: the references hold no instances and the ones enqueued
+     * meanwhile are reaped when the rules are loaded again, with their
+     * lifetimes including the wait.
+     */
+    synchronized void stop() {
+        Thread t = reaper;
+        reaper = null;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    private static final class InstanceRef extends PhantomReference<Object> {
+        final ClassMetrics metrics;
+        final long birth;
+        final int stripe;
+        InstanceRef prev;
+        InstanceRef next;
+
+        InstanceRef(Object obj, ReferenceQueue<Object> queue, ClassMetrics metrics, long birth, int stripe) {
+            super(obj, queue);
+            this.metrics = metrics;
+            this.birth = birth;
+            this.stripe = stripe;
+        }
+    }
+}
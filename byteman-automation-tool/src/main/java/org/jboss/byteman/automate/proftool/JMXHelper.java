@@ -21,174 +21,891 @@
 
 package org.jboss.byteman.automate.proftool;
 
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import javax.management.Attribute;
 import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
+import javax.management.Descriptor;
 import javax.management.DynamicMBean;
+import javax.management.ImmutableDescriptor;
 import javax.management.InvalidAttributeValueException;
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanException;
+import javax.management.ListenerNotFoundException;
 import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
 import javax.management.MBeanServer;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
+import javax.management.RuntimeOperationsException;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
 
 import org.jboss.byteman.rule.Rule;
 import org.jboss.byteman.rule.helper.Helper;
 
-public class JMXHelper extends Helper implements DynamicMBean {
+public class JMXHelper extends Helper implements DynamicMBean, NotificationEmitter {
     private static final String sep = "#";
+    private static final String declSep = "|";
     private static final String longName = Long.class.getName();
-    private static final ConcurrentHashMap<String, LongAdder> instances = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, LongAdder> instancesDone = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<Integer, Long> birthdays = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, Long> lifetimesMin = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, Long> lifetimesMax = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, LongAdder> lifetimesTot = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, LongAdder> callCounts = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, Long> callTimes = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, Long> execTimesMin = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, Long> execTimesMax = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, LongAdder> execTimesTot = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, LongAdder> exitExcept = new ConcurrentHashMap<>();
+    private static final double[] percentiles = { 50.0, 90.0, 99.0, 99.9 };
+    private static final String[] percentileNames = { "p50", "p90", "p99", "p999" };
+    private static final String[] percentileLabels = { "50th", "90th", "99th", "99.9th" };
+    private static final MetricStore store = new MetricStore();
+    private static final ThreadLocal<CallStack> callStacks = ThreadLocal.withInitial(CallStack::new);
+
+    private static Clock clock = new Clock.MillisClock();
+    private static final InstanceTracker tracker = new InstanceTracker(() -> clock.time());
+    private static volatile Governor governor = null;
+    private static volatile Aggregator aggregator = null;
+    private static volatile TraceRing trace = null;
+    private static volatile CallTree callTree = null;
+    private static volatile MetricWindows windows = null;
+    private static volatile PrometheusExporter prometheus = null;
+    private static volatile StatsDExporter statsd = null;
+    private static volatile MmvExporter mmv = null;
+    private static volatile ThresholdMonitor thresholds = null;
+    private static volatile InfoChangeNotifier infoNotifier = null;
+    private static final NotificationBroadcasterSupport notifications = new NotificationBroadcasterSupport();
+    private static final AtomicLong notificationSequence = new AtomicLong();
+    // Kinds of metrics recorded by the rules, listed as soon as declared
+    private static int declaredClassKinds = 0;
+    private static int declaredMethodKinds = 0;
+    // Name of the statistics MBean, and whether to register MBeans per class or method
+    private static volatile ObjectName objectName = null;
+    private static volatile String scope = null;
+    // Start of the interval reported, moved by snapshotAndReset
+    private static final Object snapshotLock = new Object();
+    private static volatile long intervalStart = System.currentTimeMillis();
+    private static final String[] rateNames = { "1m", "5m", "15m" };
+    private static final String[] rankings = { "calls", "exceptions", "total", "average", "maximum", "p50", "p90", "p99", "p999",
+        "rate.1m", "rate.5m", "rate.15m" };
+    // Listed attributes as of a store version, and getters of attributes read
+    private static volatile MBeanInfo mbeanInfo = null;
+    private static volatile long mbeanInfoVersion = -1;
+    private static final Map<String, Getter> getters = new ConcurrentHashMap<>();
+    // Listed attributes of each class or method MBean by its scoped name, named relative to it
+    private static volatile Map<String, MBeanAttributeInfo[]> scopedAttributes = Collections.emptyMap();
+    // Top values of dimensions reported, of TOP_K_SPARE times as many counted
+    private static final int TOP_K_SPARE = 4;
+    private static int topK = 10;
+    private static int slowestCount = 0;
+    private static boolean slowestStacks = false;
+    // Calls counted by rules of their own, not by the timing rules in count-only mode
+    private static boolean callsCounted = false;
+    // Names last declared by the rules, by the ID of the first name
+    private static volatile String[] classDeclarations = new String[0];
+    private static volatile String[] methodDeclarations = new String[0];
+    // Settings registered with, and those of reloaded rules last warned about
+    private static volatile int registeredSwitches = 0;
+    private static volatile String registeredOptions = null;
+    private static volatile int ignoredSwitches = 0;
+    private static volatile String ignoredOptions = null;
 
     private static boolean recordInstMinLife = false;
     private static boolean recordInstMaxLife = false;
+    private static boolean recordInstLifePct = false;
     private static boolean recordMinExecTime = false;
     private static boolean recordMaxExecTime = false;
+    private static boolean recordExecTimePct = false;
     private static boolean recordExitExcept = false;
 
     public JMXHelper(Rule rule) {
         super(rule);
     }
 
-    public void registerMBean(String name, boolean recordInstMinLife, boolean recordInstMaxLife, boolean recordMinExecTime, boolean recordMaxExecTime, boolean recordExitExcept) {
+    public void registerMBean(String name, boolean recordInstMinLife, boolean recordInstMaxLife, boolean recordInstLifePct, boolean recordMinExecTime, boolean recordMaxExecTime, boolean recordExecTimePct, boolean recordExitExcept, String options) {
+        int switches = (recordInstMinLife ? 1 : 0) | (recordInstMaxLife ? 2 : 0) | (recordInstLifePct ? 4 : 0) | (recordMinExecTime ? 8 : 0)
+            | (recordMaxExecTime ? 16 : 0) | (recordExecTimePct ? 32 : 0) | (recordExitExcept ? 64 : 0);
         MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
         synchronized (mbs) {
             try {
                 ObjectName oname = new ObjectName(name);
-                if (!mbs.isRegistered(oname)) {
-                    mbs.registerMBean(this, oname);
-                    this.recordInstMinLife = recordInstMinLife;
-                    this.recordInstMaxLife = recordInstMaxLife;
-                    this.recordMinExecTime = recordMinExecTime;
-                    this.recordMaxExecTime = recordMaxExecTime;
-                    this.recordExitExcept = recordExitExcept;
+                if (mbs.isRegistered(oname)) {
+                    checkSettings(name, switches, options);
+                } else {
+                    HelperOptions opts = new HelperOptions(options);
+                    Clock clock = Clock.forName(opts.get("clock", Clock.MILLIS), opts.getLong("clockTick", 100));
+                    long budgetEvents = opts.getLong("budgetEvents", 0);
+                    long budgetNanos = opts.getLong("budgetNanos", 0);
+                    Governor governor = budgetEvents > 0 || budgetNanos > 0 ? new Governor(store, clock, budgetEvents, budgetNanos) : null;
+                    boolean buffered = Boolean.parseBoolean(opts.get("buffered", "false"));
+                    Aggregator aggregator = buffered ? new Aggregator(store, opts.getLong("drainInterval", 100)) : null;
+                    String scope = opts.get("mbeans", null);
+                    if (scope != null && !scope.equals("class") && !scope.equals("method")) {
+                        throw new IllegalArgumentException("MBeans must be registered per class or method: " + scope);
+                    }
+                    int classKinds = 0;
+                    int methodKinds = 0;
+                    for (String kind: opts.get("declare", "").split(",")) {
+                        if (kind.equals("instances")) {
+                            classKinds |= ClassMetrics.INSTANCES;
+                        } else if (kind.equals("lifetimes")) {
+                            classKinds |= ClassMetrics.LIFETIMES;
+                        } else if (kind.equals("calls")) {
+                            methodKinds |= MethodMetrics.CALLS;
+                        } else if (kind.equals("exectimes")) {
+                            methodKinds |= MethodMetrics.STARTS | MethodMetrics.EXEC_TIMES;
+                        } else if (kind.equals("exceptions")) {
+                            methodKinds |= MethodMetrics.EXIT_EXCEPT;
+                        } else if (!kind.isEmpty()) {
+                            throw new IllegalArgumentException("Unknown kind of metric to declare: " + kind);
+                        }
+                    }
+                    int topK = (int) opts.getLong("topK", 10);
+                    if (topK <= 0) {
+                        throw new IllegalArgumentException("Top-K must be positive: " + topK);
+                    }
+                    int slowestCount = (int) opts.getLong("slowest", 0);
+                    if (slowestCount < 0) {
+                        throw new IllegalArgumentException("Number of slowest calls must not be negative: " + slowestCount);
+                    }
+                    boolean calltree = Boolean.parseBoolean(opts.get("calltree", "false"));
+                    boolean slowestStacks = Boolean.parseBoolean(opts.get("slowestStacks", "false"));
+                    boolean callsCounted = Boolean.parseBoolean(opts.get("callCounts", "false"));
+                    MetricWindows windows = new MetricWindows(store, (int) opts.getLong("window", 0));
+                    String http = opts.get("http", null);
+                    PrometheusExporter prometheus = http != null ? new PrometheusExporter(store, clock, recordExecTimePct, http) : null;
+                    String statsdAddress = opts.get("statsd", null);
+                    StatsDExporter statsd = statsdAddress != null ? new StatsDExporter(store, clock, statsdAddress, opts.get("statsdPrefix", "proftool"),
+                        opts.getLong("statsdInterval", 10), (int) opts.getLong("statsdMtu", 1432)) : null;
+                    String mmvFile = opts.get("mmv", null);
+                    MmvExporter mmv = mmvFile != null ? new MmvExporter(store, clock, recordExecTimePct, mmvFile, opts.getLong("mmvInterval", 1000)) : null;
+                    String thresholdSpecs = opts.get("thresholds", null);
+                    ThresholdMonitor thresholds = thresholdSpecs != null ? new ThresholdMonitor(store, clock, notifications, oname, notificationSequence, thresholdSpecs) : null;
+                    String traceFile = opts.get("traceFile", null);
+                    TraceRing trace = traceFile != null ? new TraceRing(traceFile, opts.getLong("traceSize", 64) << 20) : null;
+
+                    // Registered last, threads started so far stopped if anything fails
+                    List<Runnable> started = new ArrayList<>();
+                    try {
+                        clock.start();
+                        started.add(clock::stop);
+                        if (governor != null) {
+                            governor.start();
+                            started.add(governor::stop);
+                        }
+                        if (aggregator != null) {
+                            aggregator.start();
+                            started.add(aggregator::stop);
+                        }
+                        windows.start();
+                        started.add(windows::stop);
+                        if (prometheus != null) {
+                            started.add(prometheus::stop);
+                            prometheus.start();
+                        }
+                        if (statsd != null) {
+                            statsd.start();
+                            started.add(statsd::stop);
+                        }
+                        if (mmv != null) {
+                            mmv.start();
+                            started.add(mmv::stop);
+                        }
+                        if (thresholds != null) {
+                            thresholds.start();
+                            started.add(thresholds::stop);
+                        }
+                        mbs.registerMBean(this, oname);
+                    } catch (Exception ex) {
+                        for (Runnable stop: started) {
+                            stop.run();
+                        }
+                        throw ex;
+                    }
+                    JMXHelper.declaredClassKinds = classKinds;
+                    JMXHelper.declaredMethodKinds = methodKinds;
+                    JMXHelper.objectName = oname;
+                    JMXHelper.scope = scope;
+                    JMXHelper.clock = clock;
+                    JMXHelper.governor = governor;
+                    JMXHelper.aggregator = aggregator;
+                    JMXHelper.trace = trace;
+                    JMXHelper.windows = windows;
+                    JMXHelper.topK = topK;
+                    JMXHelper.slowestCount = slowestCount;
+                    JMXHelper.slowestStacks = slowestStacks;
+                    JMXHelper.callsCounted = callsCounted;
+                    if (calltree) {
+                        JMXHelper.callTree = new CallTree();
+                    }
+                    JMXHelper.recordInstMinLife = recordInstMinLife;
+                    JMXHelper.recordInstMaxLife = recordInstMaxLife;
+                    JMXHelper.recordInstLifePct = recordInstLifePct;
+                    JMXHelper.recordMinExecTime = recordMinExecTime;
+                    JMXHelper.recordMaxExecTime = recordMaxExecTime;
+                    JMXHelper.recordExecTimePct = recordExecTimePct;
+                    JMXHelper.recordExitExcept = recordExitExcept;
+                    JMXHelper.registeredSwitches = switches;
+                    JMXHelper.registeredOptions = options;
+                    JMXHelper.prometheus = prometheus;
+                    JMXHelper.statsd = statsd;
+                    JMXHelper.mmv = mmv;
+                    JMXHelper.thresholds = thresholds;
+                    // Any MBean info read before the settings were in place is stale
+                    JMXHelper.mbeanInfoVersion = -1;
+                    InfoChangeNotifier infoNotifier = new InfoChangeNotifier(store, this, notifications, oname, notificationSequence);
+                    JMXHelper.infoNotifier = infoNotifier;
+                    infoNotifier.start();
                 }
             } catch (Exception ex) { ex.printStackTrace(); }
         }
     }
 
+    /*
+     * Rules reloaded while the MBean stays registered keep the settings
+     * it was registered with, as the clock, exporters and other threads
+     * of the metrics recorded so far are not replaced underneath them.
+     * Changed settings are warned about once.
+     */
+    private static void checkSettings(String name, int switches, String options) {
+        if (switches == registeredSwitches && options.equals(registeredOptions)
+                || switches == ignoredSwitches && options.equals(ignoredOptions)) {
+            return;
+        }
+        ignoredSwitches = switches;
+        ignoredOptions = options;
+        System.err.println("ProfTool: " + name + " already registered, ignoring changed settings of reloaded rules until restarted: " + options);
+    }
+
+    // Called by Byteman when the first rule using the helper is loaded
+    public static void activated() {
+        clock.start();
+        tracker.start();
+        if (governor != null) {
+            governor.restart();
+            governor.start();
+        }
+        if (aggregator != null) {
+            aggregator.start();
+        }
+        if (windows != null) {
+            windows.start();
+        }
+        if (prometheus != null) {
+            try {
+                prometheus.start();
+            } catch (IOException ex) { ex.printStackTrace(); }
+        }
+        if (statsd != null) {
+            statsd.start();
+        }
+        if (mmv != null) {
+            mmv.start();
+        }
+        if (thresholds != null) {
+            thresholds.start();
+        }
+        if (infoNotifier != null) {
+            infoNotifier.start();
+        }
+    }
+
+    // Called by Byteman once no loaded rule uses the helper anymore
+    public static void deactivated() {
+        clock.stop();
+        tracker.stop();
+        if (governor != null) {
+            governor.stop();
+        }
+        if (aggregator != null) {
+            aggregator.stop();
+        }
+        if (trace != null) {
+            trace.force();
+        }
+        if (windows != null) {
+            windows.stop();
+        }
+        if (prometheus != null) {
+            prometheus.stop();
+        }
+        if (statsd != null) {
+            statsd.stop();
+        }
+        if (mmv != null) {
+            mmv.stop();
+        }
+        if (thresholds != null) {
+            thresholds.stop();
+        }
+        if (infoNotifier != null) {
+            infoNotifier.stop();
+        }
+    }
+
+    /*
+     * Names of classes with IDs starting from firstId, separated by
+     * declSep. Rules reloaded for edited targets declare other names for
+     * the same IDs, so the names are compared with those last declared
+     * on every call, in the common case the very same string.
+     */
+    public void declareClasses(int firstId, String names) {
+        String[] declared = classDeclarations;
+        if (firstId >= declared.length || !names.equals(declared[firstId])) {
+            int[] ids = store.declareClasses(firstId, cleanNames(names));
+            if (declaredClassKinds != 0) {
+                for (int id: ids) {
+                    store.classMetrics(id).seen(declaredClassKinds);
+                }
+            }
+            registerScoped(names, false);
+            classDeclarations = declaration(declared, firstId, names);
+        }
+    }
+
+    // Names of methods with IDs starting from firstId, see declareClasses
+    public void declareMethods(int firstId, String names) {
+        String[] declared = methodDeclarations;
+        if (firstId >= declared.length || !names.equals(declared[firstId])) {
+            int[] ids = store.declareMethods(firstId, cleanNames(names));
+            if (declaredMethodKinds != 0) {
+                for (int id: ids) {
+                    store.methodMetrics(id).seen(declaredMethodKinds);
+                }
+            }
+            long now = clock.time();
+            for (MethodMetrics m: store.methods()) {
+                if (m != null && m.concurrencyStart == 0) {
+                    m.concurrencyStart = now;
+                }
+                if (m != null && m.slowest == null && slowestCount > 0) {
+                    m.slowest = new Slowest(slowestCount);
+                }
+            }
+            if (trace != null) {
+                try {
+                    trace.writeNames(store.methods());
+                } catch (IOException ex) { ex.printStackTrace(); }
+            }
+            registerScoped(names, true);
+            methodDeclarations = declaration(declared, firstId, names);
+        }
+    }
+
+    private static String[] declaration(String[] declared, int firstId, String names) {
+        declared = Arrays.copyOf(declared, Math.max(declared.length, firstId + 1));
+        declared[firstId] = names;
+        return declared;
+    }
+
+    /*
+     * Registers an MBean with the attributes of each class, or of each
+     * class and method, not registered yet, named by adding class and
+     * method keys to the name of the statistics MBean. With MBeans per
+     * method the class MBeans only have the metrics of the class itself.
+     */
+    private void registerScoped(String names, boolean methods) {
+        String scope = JMXHelper.scope;
+        if (scope == null) {
+            return;
+        }
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        synchronized (mbs) {
+            for (String name: names.split(Pattern.quote(declSep))) {
+                String clazz = cleanName(name.contains(sep) ? name.substring(0, name.indexOf(sep)) : name);
+                try {
+                    ObjectName oname = new ObjectName(objectName + ",class=" + clazz);
+                    String scoped = clazz;
+                    if (methods && scope.equals("method")) {
+                        scoped = cleanName(name);
+                        oname = new ObjectName(oname + ",method=" + scoped.substring(clazz.length() + 1));
+                    }
+                    if (!mbs.isRegistered(oname)) {
+                        mbs.registerMBean(new ScopedMBean(store, this, scoped), oname);
+                    }
+                } catch (Exception ex) { ex.printStackTrace(); }
+            }
+        }
+    }
+
+    private String[] cleanNames(String names) {
+        String[] keys = names.split(Pattern.quote(declSep));
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = cleanName(keys[i]);
+        }
+        return keys;
+    }
+
+    // Time valued attribute, unit of the selected clock in its metadata
+    private MBeanAttributeInfo timeAttribute(String name, String description) {
+        Descriptor units = new ImmutableDescriptor("units=" + clock.unit());
+        return new MBeanAttributeInfo(name, longName, description + " (" + clock.unit() + ")", true, false, false, units);
+    }
+
     private String cleanName(String key) {
         key = key.replace(" ", "_").replace("(", "_").replace(")", "").replace("<", "").replace(">", "");
         return key.replace("?", "").replace(",", "_").replace(sep, ".").replace("/", "");
     }
 
+    /*
+     * MBeanInfo is rebuilt only once the store version shows a metric
+     * declared or recorded for the first time, and the getters of the
+     * listed attributes are resolved then so that reading them needs
+     * no parsing.
+     */
     public MBeanInfo getMBeanInfo() {
+        long version = store.version();
+        MBeanInfo info = mbeanInfo;
+        if (info == null || mbeanInfoVersion != version) {
+            synchronized (getters) {
+                info = buildMBeanInfo();
+                for (MBeanAttributeInfo ai: info.getAttributes()) {
+                    try {
+                        Getter getter = resolve(ai.getName());
+                        if (!(getter instanceof Missing)) {
+                            getters.putIfAbsent(ai.getName(), getter);
+                        }
+                    } catch (Exception ex) { ex.printStackTrace(); }
+                }
+                scopedAttributes = indexScoped(info.getAttributes());
+                mbeanInfo = info;
+                mbeanInfoVersion = version;
+            }
+        }
+        return info;
+    }
+
+    // Listed attributes of a class or method MBean, see registerScoped
+    MBeanAttributeInfo[] scopedAttributes(String name) {
+        getMBeanInfo();
+        MBeanAttributeInfo[] attributes = scopedAttributes.get(name);
+        return attributes != null ? attributes : new MBeanAttributeInfo[0];
+    }
+
+    // Groups the attributes by the class or method MBean they belong to
+    private static Map<String, MBeanAttributeInfo[]> indexScoped(MBeanAttributeInfo[] attributes) {
+        String scope = JMXHelper.scope;
+        if (scope == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, List<MBeanAttributeInfo>> index = new HashMap<>();
+        for (MBeanAttributeInfo ai: attributes) {
+            String owner = owner(ai.getName());
+            if (owner == null) {
+                continue;
+            }
+            if (scope.equals("class") && store.methodId(owner) >= 0) {
+                owner = owner.substring(0, owner.lastIndexOf('.'));
+            }
+            String local = ai.getName().substring(owner.length() + 1);
+            index.computeIfAbsent(owner, k -> new ArrayList<>())
+                .add(new MBeanAttributeInfo(local, ai.getType(), ai.getDescription(), true, false, false, ai.getDescriptor()));
+        }
+        Map<String, MBeanAttributeInfo[]> scoped = new HashMap<>();
+        for (Map.Entry<String, List<MBeanAttributeInfo>> e: index.entrySet()) {
+            scoped.put(e.getKey(), e.getValue().toArray(new MBeanAttributeInfo[e.getValue().size()]));
+        }
+        return scoped;
+    }
+
+    // Method or class an attribute is of, null if neither
+    private static String owner(String attribute) {
+        for (int i = attribute.lastIndexOf('.'); i > 0; i = attribute.lastIndexOf('.', i - 1)) {
+            String name = attribute.substring(0, i);
+            if (store.methodId(name) >= 0 || store.classMetrics(name) != null) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private MBeanInfo buildMBeanInfo() {
         MBeanAttributeInfo ai;
         String clazz = getClass().getName();
         String label = "Byteman ProfTool statistics";
         List<MBeanAttributeInfo> attributes = new ArrayList<>();
 
         // Instance count, live instances
-        for (Map.Entry<String, LongAdder> e: instances.entrySet()) {
-            ai = new MBeanAttributeInfo(cleanName(e.getKey()) + ".instances.total", longName, "Total instances of " + cleanName(e.getKey()), true, false, false);
+        for (ClassMetrics c: store.classes()) {
+            if (c == null || !c.hasSeen(ClassMetrics.INSTANCES)) {
+                continue;
+            }
+            ai = new MBeanAttributeInfo(c.name + ".instances.total", longName, "Total instances of " + c.name, true, false, false);
             attributes.add(ai);
-            ai = new MBeanAttributeInfo(cleanName(e.getKey()) + ".instances.live", longName, "Live instances of " + cleanName(e.getKey()), true, false, false);
+            ai = new MBeanAttributeInfo(c.name + ".instances.live", longName, "Live instances of " + c.name, true, false, false);
             attributes.add(ai);
         }
 
         // Instance lifetimes
-        for (Map.Entry<String, LongAdder> e: lifetimesTot.entrySet()) {
+        for (ClassMetrics c: store.classes()) {
+            if (c == null || !c.hasSeen(ClassMetrics.LIFETIMES)) {
+                continue;
+            }
             if (recordInstMinLife) {
-                ai = new MBeanAttributeInfo(cleanName(e.getKey()) + ".lifetime.minimum", longName, "Minimum instance lifetime of " + cleanName(e.getKey()), true, false, false);
+                ai = timeAttribute(c.name + ".lifetime.minimum", "Minimum instance lifetime of " + c.name);
                 attributes.add(ai);
             }
-            ai = new MBeanAttributeInfo(cleanName(e.getKey()) + ".lifetime.average", longName, "Average instance lifetime of " + cleanName(e.getKey()), true, false, false);
+            ai = timeAttribute(c.name + ".lifetime.average", "Average instance lifetime of " + c.name);
+            attributes.add(ai);
+            ai = timeAttribute(c.name + ".lifetime.stddev", "Standard deviation of instance lifetime of " + c.name);
             attributes.add(ai);
             if (recordInstMaxLife) {
-                ai = new MBeanAttributeInfo(cleanName(e.getKey()) + ".lifetime.maximum", longName, "Maximum instance lifetime of " + cleanName(e.getKey()), true, false, false);
+                ai = timeAttribute(c.name + ".lifetime.maximum", "Maximum instance lifetime of " + c.name);
                 attributes.add(ai);
             }
+            if (recordInstLifePct) {
+                for (int i = 0; i < percentiles.length; i++) {
+                    ai = timeAttribute(c.name + ".lifetime." + percentileNames[i], percentileLabels[i] + " percentile instance lifetime of " + c.name);
+                    attributes.add(ai);
+                }
+            }
         }
 
         // Call counts
-        for (Map.Entry<String, LongAdder> e: callCounts.entrySet()) {
-            ai = new MBeanAttributeInfo(cleanName(e.getKey()) + ".calls", longName, "Call count of " + cleanName(e.getKey()), true, false, false);
+        for (MethodMetrics m: store.methods()) {
+            if (m == null || !m.hasSeen(MethodMetrics.CALLS)) {
+                continue;
+            }
+            ai = new MBeanAttributeInfo(m.name + ".calls", longName, "Call count of " + m.name, true, false, false);
+            attributes.add(ai);
+        }
+
+        // Call rates
+        for (MethodMetrics m: store.methods()) {
+            if (m == null || !m.hasSeen(MethodMetrics.RATES)) {
+                continue;
+            }
+            for (String rate: rateNames) {
+                ai = new MBeanAttributeInfo(m.name + ".rate." + rate, "java.lang.Double", rate.replace("m", "") + " minute average calls per second of " + m.name, true, false, false);
+                attributes.add(ai);
+            }
+        }
+
+        // Calls in flight
+        for (MethodMetrics m: store.methods()) {
+            if (m == null || !m.hasSeen(MethodMetrics.STARTS | MethodMetrics.EXEC_TIMES)) {
+                continue;
+            }
+            ai = new MBeanAttributeInfo(m.name + ".inflight", longName, "Calls in flight of " + m.name, true, false, false);
+            attributes.add(ai);
+            ai = new MBeanAttributeInfo(m.name + ".inflight.peak", longName, "Peak calls in flight since reset of " + m.name, true, false, false);
+            attributes.add(ai);
+            ai = new MBeanAttributeInfo(m.name + ".inflight.average", "java.lang.Double", "Time-weighted average calls in flight since reset of " + m.name, true, false, false);
+            attributes.add(ai);
+        }
+
+        // Sampling rates
+        for (MethodMetrics m: store.methods()) {
+            if (m == null || !m.hasSeen(MethodMetrics.SAMPLED)) {
+                continue;
+            }
+            ai = new MBeanAttributeInfo(m.name + ".samplerate", "java.lang.Integer", "1-in-N sampling rate of " + m.name, true, false, false);
             attributes.add(ai);
         }
 
+        // Overhead governor
+        if (governor != null) {
+            for (MethodMetrics m: store.methods()) {
+                if (m == null || !m.hasSeen(MethodMetrics.CALLS | MethodMetrics.EXEC_TIMES | MethodMetrics.EXIT_EXCEPT)) {
+                    continue;
+                }
+                ai = new MBeanAttributeInfo(m.name + ".governor.mode", "java.lang.String", "Instrumentation mode of " + m.name + " set by overhead governor", true, false, false);
+                attributes.add(ai);
+                ai = new MBeanAttributeInfo(m.name + ".governor.eventrate", longName, "Recorded events per second of " + m.name, true, false, false);
+                attributes.add(ai);
+            }
+        }
+
         // Call execution times
-        for (Map.Entry<String, LongAdder> e: execTimesTot.entrySet()) {
+        for (MethodMetrics m: store.methods()) {
+            if (m == null || !m.hasSeen(MethodMetrics.EXEC_TIMES)) {
+                continue;
+            }
             if (recordMinExecTime) {
-                ai = new MBeanAttributeInfo(cleanName(e.getKey()) + ".exectime.minimum", longName, "Minimum execution time of " + cleanName(e.getKey()), true, false, false);
+                ai = timeAttribute(m.name + ".exectime.minimum", "Minimum execution time of " + m.name);
                 attributes.add(ai);
             }
-            ai = new MBeanAttributeInfo(cleanName(e.getKey()) + ".exectime.average", longName, "Average execution time of " + cleanName(e.getKey()), true, false, false);
+            ai = timeAttribute(m.name + ".exectime.average", "Average execution time of " + m.name);
+            attributes.add(ai);
+            ai = timeAttribute(m.name + ".exectime.stddev", "Standard deviation of execution time of " + m.name);
             attributes.add(ai);
             if (recordMaxExecTime) {
-                ai = new MBeanAttributeInfo(cleanName(e.getKey()) + ".exectime.maximum", longName, "Maximum execution time of " + cleanName(e.getKey()), true, false, false);
+                ai = timeAttribute(m.name + ".exectime.maximum", "Maximum execution time of " + m.name);
+                attributes.add(ai);
+            }
+            if (recordExecTimePct) {
+                for (int i = 0; i < percentiles.length; i++) {
+                    ai = timeAttribute(m.name + ".exectime." + percentileNames[i], percentileLabels[i] + " percentile execution time of " + m.name);
+                    attributes.add(ai);
+                }
+            }
+            if (windows != null && m.hasSeen(MethodMetrics.WINDOW)) {
+                String last = " over last " + windows.minutes() + " minutes";
+                ai = timeAttribute(m.name + ".exectime.window.average", "Average execution time of " + m.name + last);
                 attributes.add(ai);
+                for (int i = 0; recordExecTimePct && i < percentiles.length; i++) {
+                    ai = timeAttribute(m.name + ".exectime.window." + percentileNames[i], percentileLabels[i] + " percentile execution time of " + m.name + last);
+                    attributes.add(ai);
+                }
             }
         }
 
+        // Dimension top values
+        for (MethodMetrics m: store.methods()) {
+            if (m == null || !m.hasSeen(MethodMetrics.DIMS)) {
+                continue;
+            }
+            ai = new MBeanAttributeInfo(m.name + ".topk", TabularData.class.getName(), "Most frequent dimension values of " + m.name + " with execution times (" + clock.unit() + ")", true, false, false);
+            attributes.add(ai);
+        }
+
+        // Slowest calls
+        for (MethodMetrics m: store.methods()) {
+            if (m == null || m.slowest == null || !m.hasSeen(MethodMetrics.EXEC_TIMES)) {
+                continue;
+            }
+            ai = new MBeanAttributeInfo(m.name + ".slowest", TabularData.class.getName(), "Slowest calls of " + m.name + " (" + clock.unit() + ")", true, false, false);
+            attributes.add(ai);
+        }
+
         // Exits via exceptions
         if (recordExitExcept) {
-            for (Map.Entry<String, LongAdder> e: exitExcept.entrySet()) {
-                ai = new MBeanAttributeInfo(cleanName(e.getKey()) + ".exit.exception", longName, "Exits via exceptions from " + cleanName(e.getKey()), true, false, false);
+            for (MethodMetrics m: store.methods()) {
+                if (m == null || !m.hasSeen(MethodMetrics.EXIT_EXCEPT)) {
+                    continue;
+                }
+                ai = new MBeanAttributeInfo(m.name + ".exit.exception", longName, "Exits via exceptions from " + m.name, true, false, false);
                 attributes.add(ai);
             }
         }
 
-        return new MBeanInfo(clazz, label, attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+        // All metrics in one read
+        ai = new MBeanAttributeInfo("snapshot", CompositeData.class.getName(), "All metrics since the last reset (" + clock.unit() + ")", true, false, false);
+        attributes.add(ai);
+
+        List<MBeanOperationInfo> operations = new ArrayList<>();
+        operations.add(new MBeanOperationInfo("resetConcurrency", "Restart peak and average calls in flight tracking of all methods",
+            new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION));
+        operations.add(new MBeanOperationInfo("snapshot", "All metrics since the last reset read together",
+            new MBeanParameterInfo[0], CompositeData.class.getName(), MBeanOperationInfo.INFO));
+        operations.add(new MBeanOperationInfo("snapshotAndReset", "All metrics since the last reset read together, starting the next interval from them",
+            new MBeanParameterInfo[0], CompositeData.class.getName(), MBeanOperationInfo.ACTION_INFO));
+        operations.add(new MBeanOperationInfo("topMethods", "Methods with the highest values of a metric since the last reset",
+            new MBeanParameterInfo[] {
+                new MBeanParameterInfo("metric", String.class.getName(), "One of " + String.join(", ", rankings)),
+                new MBeanParameterInfo("count", Integer.class.getName(), "Number of methods to return") },
+            TabularData.class.getName(), MBeanOperationInfo.INFO));
+        if (callTree != null) {
+            operations.add(new MBeanOperationInfo("callTreeCollapsed", "Call tree as collapsed stacks of self times for flame graphs",
+                new MBeanParameterInfo[0], String.class.getName(), MBeanOperationInfo.INFO));
+            operations.add(new MBeanOperationInfo("callTreeChromeTrace", "Call tree as Chrome trace event JSON",
+                new MBeanParameterInfo[0], String.class.getName(), MBeanOperationInfo.INFO));
+        }
+
+        return new MBeanInfo(clazz, label, attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+            operations.toArray(new MBeanOperationInfo[operations.size()]), getNotificationInfo());
+    }
+
+    public MBeanNotificationInfo[] getNotificationInfo() {
+        List<MBeanNotificationInfo> info = new ArrayList<>();
+        info.add(InfoChangeNotifier.NOTIFICATION);
+        if (thresholds != null) {
+            info.addAll(Arrays.asList(ThresholdMonitor.NOTIFICATIONS));
+        }
+        return info.toArray(new MBeanNotificationInfo[info.size()]);
+    }
+
+    public void addNotificationListener(NotificationListener listener, NotificationFilter filter, Object handback) {
+        notifications.addNotificationListener(listener, filter, handback);
+    }
+
+    public void removeNotificationListener(NotificationListener listener) throws ListenerNotFoundException {
+        notifications.removeNotificationListener(listener);
+    }
+
+    public void removeNotificationListener(NotificationListener listener, NotificationFilter filter, Object handback) throws ListenerNotFoundException {
+        notifications.removeNotificationListener(listener, filter, handback);
     }
 
     public Object getAttribute(String attribute) throws AttributeNotFoundException, MBeanException, ReflectionException {
-        if (attribute.endsWith(".instances.total")) {
-            String key = attribute.substring(0, attribute.length() - ".instances.total".length());
-            return instances.get(key) != null ? instances.get(key).sum() : 0;
+        try {
+            Getter getter = getters.get(attribute);
+            if (getter == null) {
+                getter = resolve(attribute);
+                if (!(getter instanceof Missing)) {
+                    getters.put(attribute, getter);
+                }
+            }
+            return getter.get();
+        } catch (OpenDataException ex) {
+            throw new MBeanException(ex);
+        }
+    }
+
+    // Reads an attribute from the metric it was resolved to
+    private interface Getter {
+        Object get() throws OpenDataException;
+    }
+
+    // Attribute of an undeclared class or method, resolved again when read
+    private static final class Missing implements Getter {
+        private final Object value;
+
+        Missing(Object value) {
+            this.value = value;
+        }
+
+        public Object get() {
+            return value;
+        }
+    }
+
+    private static String prefix(String attribute, String suffix) {
+        return attribute.substring(0, attribute.length() - suffix.length());
+    }
+
+    // Parses an attribute name once, binding its getter to the metric read
+    private static Getter resolve(String attribute) throws AttributeNotFoundException, OpenDataException {
+        if (attribute.equals("snapshot")) {
+            return () -> snapshot(false);
+        } else if (attribute.endsWith(".instances.total")) {
+            ClassMetrics c = store.classMetrics(prefix(attribute, ".instances.total"));
+            return c != null ? () -> c.instances() : new Missing(0L);
         } else if (attribute.endsWith(".instances.live")) {
-            String key = attribute.substring(0, attribute.length() - ".instances.live".length());
-            long count = instances.get(key) != null ? instances.get(key).sum() : 0;
-            long done = instancesDone.get(key) != null ? instancesDone.get(key).sum() : 0;
-            return count - done;
+            ClassMetrics c = store.classMetrics(prefix(attribute, ".instances.live"));
+            return c != null ? () -> c.liveInstances() : new Missing(0L);
         } else if (attribute.endsWith(".lifetime.minimum")) {
-            String key = attribute.substring(0, attribute.length() - ".lifetime.average".length());
-            return lifetimesMin.get(key);
+            ClassMetrics c = store.classMetrics(prefix(attribute, ".lifetime.minimum"));
+            return c != null ? () -> {
+                StatsCell.Snapshot snap = c.lifetimeSnapshot();
+                return snap.count > 0 ? snap.min : null;
+            } : new Missing(null);
         } else if (attribute.endsWith(".lifetime.average")) {
-            String key = attribute.substring(0, attribute.length() - ".lifetime.average".length());
-            long done = instancesDone.get(key) != null ? instancesDone.get(key).sum() : 0;
-            if (done == 0) { return 0; };
-            long time = lifetimesTot.get(key) != null ? lifetimesTot.get(key).sum() : 0;
-            return time / done;
+            ClassMetrics c = store.classMetrics(prefix(attribute, ".lifetime.average"));
+            return c != null ? () -> c.lifetimeSnapshot().mean() : new Missing(0L);
+        } else if (attribute.endsWith(".lifetime.stddev")) {
+            ClassMetrics c = store.classMetrics(prefix(attribute, ".lifetime.stddev"));
+            return c != null ? () -> c.lifetimeSnapshot().stddev() : new Missing(0L);
         } else if (attribute.endsWith(".lifetime.maximum")) {
-            String key = attribute.substring(0, attribute.length() - ".lifetime.maximum".length());
-            return lifetimesMax.get(key);
+            ClassMetrics c = store.classMetrics(prefix(attribute, ".lifetime.maximum"));
+            return c != null ? () -> {
+                StatsCell.Snapshot snap = c.lifetimeSnapshot();
+                return snap.count > 0 ? snap.max : null;
+            } : new Missing(null);
         } else if (attribute.endsWith(".calls")) {
-            String key = attribute.substring(0, attribute.length() - ".calls".length());
-            return callCounts.get(key) != null ? callCounts.get(key).sum() : 0;
+            MethodMetrics m = store.methodMetrics(prefix(attribute, ".calls"));
+            return m != null ? () -> m.calls() : new Missing(0L);
+        } else if (attribute.contains(".rate.")) {
+            int i = attribute.lastIndexOf(".rate.");
+            int rate = Arrays.asList(rateNames).indexOf(attribute.substring(i + ".rate.".length()));
+            int id = store.methodId(attribute.substring(0, i));
+            if (rate < 0) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return id >= 0 ? () -> {
+                MetricWindows.Window w = windowOf(id);
+                return w != null ? w.rate(rate) : 0.0;
+            } : new Missing(0.0);
+        } else if (attribute.endsWith(".exectime.window.average")) {
+            int id = store.methodId(prefix(attribute, ".exectime.window.average"));
+            MethodMetrics m = store.methodMetrics(id);
+            return m != null ? () -> {
+                MetricWindows.Window w = windowOf(id);
+                return w != null ? w.average(m) : 0L;
+            } : new Missing(0L);
+        } else if (attribute.contains(".exectime.window.p")) {
+            int i = attribute.lastIndexOf(".exectime.window.p");
+            int id = store.methodId(attribute.substring(0, i));
+            MethodMetrics m = store.methodMetrics(id);
+            int pct = Arrays.asList(percentileNames).indexOf(attribute.substring(i + ".exectime.window.".length()));
+            if (pct < 0) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return m != null ? () -> {
+                MetricWindows.Window w = windowOf(id);
+                return w != null ? w.percentile(m, percentiles[pct]) : 0L;
+            } : new Missing(0L);
+        } else if (attribute.endsWith(".inflight")) {
+            MethodMetrics m = store.methodMetrics(prefix(attribute, ".inflight"));
+            return m != null ? () -> m.inFlight.value() : new Missing(0L);
+        } else if (attribute.endsWith(".inflight.peak")) {
+            MethodMetrics m = store.methodMetrics(prefix(attribute, ".inflight.peak"));
+            return m != null ? () -> m.inFlight.peak() : new Missing(0L);
+        } else if (attribute.endsWith(".inflight.average")) {
+            MethodMetrics m = store.methodMetrics(prefix(attribute, ".inflight.average"));
+            return m != null ? () -> m.averageConcurrency(clock.time()) : new Missing(0.0);
+        } else if (attribute.endsWith(".samplerate")) {
+            MethodMetrics m = store.methodMetrics(prefix(attribute, ".samplerate"));
+            return m != null ? () -> m.weight(m.sampleRate) : new Missing(1);
+        } else if (attribute.endsWith(".governor.mode")) {
+            MethodMetrics m = store.methodMetrics(prefix(attribute, ".governor.mode"));
+            return m != null ? () -> Governor.mode(m) : new Missing(Governor.FULL);
+        } else if (attribute.endsWith(".governor.eventrate")) {
+            MethodMetrics m = store.methodMetrics(prefix(attribute, ".governor.eventrate"));
+            return m != null ? () -> m.eventRate : new Missing(0L);
         } else if (attribute.endsWith(".exectime.minimum")) {
-            String key = attribute.substring(0, attribute.length() - ".exectime.minimum".length());
-            return execTimesMin.get(key);
+            MethodMetrics m = store.methodMetrics(prefix(attribute, ".exectime.minimum"));
+            return m != null ? () -> {
+                StatsCell.Snapshot snap = m.execSnapshot();
+                return snap.count > 0 ? snap.min : null;
+            } : new Missing(null);
         } else if (attribute.endsWith(".exectime.average")) {
-            String key = attribute.substring(0, attribute.length() - ".exectime.average".length());
-            long calls = callCounts.get(key) != null ? callCounts.get(key).sum() : 0;
-            long time = execTimesTot.get(key) != null ? execTimesTot.get(key).sum() : 0;
-            return time / calls;
+            MethodMetrics m = store.methodMetrics(prefix(attribute, ".exectime.average"));
+            return m != null ? () -> m.execSnapshot().mean() : new Missing(0L);
+        } else if (attribute.endsWith(".exectime.stddev")) {
+            MethodMetrics m = store.methodMetrics(prefix(attribute, ".exectime.stddev"));
+            return m != null ? () -> m.execSnapshot().stddev() : new Missing(0L);
         } else if (attribute.endsWith(".exectime.maximum")) {
-            String key = attribute.substring(0, attribute.length() - ".exectime.maximum".length());
-            return execTimesMax.get(key);
+            MethodMetrics m = store.methodMetrics(prefix(attribute, ".exectime.maximum"));
+            return m != null ? () -> {
+                StatsCell.Snapshot snap = m.execSnapshot();
+                return snap.count > 0 ? snap.max : null;
+            } : new Missing(null);
+        } else if (attribute.contains(".lifetime.p")) {
+            int i = attribute.lastIndexOf(".lifetime.p");
+            ClassMetrics c = store.classMetrics(attribute.substring(0, i));
+            int pct = Arrays.asList(percentileNames).indexOf(attribute.substring(i + ".lifetime.".length()));
+            if (pct < 0) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return c != null ? () -> c.lifetimePercentile(percentiles[pct]) : new Missing(0L);
+        } else if (attribute.contains(".exectime.p")) {
+            int i = attribute.lastIndexOf(".exectime.p");
+            MethodMetrics m = store.methodMetrics(attribute.substring(0, i));
+            int pct = Arrays.asList(percentileNames).indexOf(attribute.substring(i + ".exectime.".length()));
+            if (pct < 0) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return m != null ? () -> m.execPercentile(percentiles[pct]) : new Missing(0L);
+        } else if (attribute.endsWith(".topk")) {
+            MethodMetrics m = store.methodMetrics(prefix(attribute, ".topk"));
+            return m != null ? () -> topKTable(m.dims() != null ? m.dims().top(topK) : new TopK.Counter[0]) : new Missing(topKTable(new TopK.Counter[0]));
+        } else if (attribute.endsWith(".slowest")) {
+            MethodMetrics m = store.methodMetrics(prefix(attribute, ".slowest"));
+            return m != null ? () -> slowestTable(m.slowest != null ? m.slowest.sorted() : new Slowest.Exemplar[0]) : new Missing(slowestTable(new Slowest.Exemplar[0]));
         } else if (attribute.endsWith(".exit.exception")) {
-            String key = attribute.substring(0, attribute.length() - ".exit.exception".length());
-            return exitExcept.get(key) != null ? exitExcept.get(key).sum() : 0;
+            MethodMetrics m = store.methodMetrics(prefix(attribute, ".exit.exception"));
+            return m != null ? () -> m.exitExcepts() : new Missing(0L);
         } else {
             throw new AttributeNotFoundException(attribute);
         }
@@ -207,6 +924,205 @@ public class JMXHelper extends Helper implements DynamicMBean {
         return list;
     }
 
+    // Time window of a method, null if not yet started
+    private static MetricWindows.Window windowOf(int id) {
+        MetricWindows w = windows;
+        return w != null ? w.window(id) : null;
+    }
+
+    private static TabularData topKTable(TopK.Counter[] top) throws OpenDataException {
+        String[] items = { "rank", "value", "count", "error", "average", "maximum" };
+        CompositeType rowType = new CompositeType("TopKValue", "Dimension value with call count and execution times", items,
+            new String[] { "Rank by count", "Dimension value", "Estimated call count", "Maximum overestimation of count",
+                "Average execution time", "Maximum execution time" },
+            new OpenType<?>[] { SimpleType.INTEGER, SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG });
+        TabularDataSupport table = new TabularDataSupport(new TabularType("TopKValues", "Most frequent dimension values", rowType, new String[] { "rank" }));
+        for (int i = 0; i < top.length; i++) {
+            TopK.Counter c = top[i];
+            table.put(new CompositeDataSupport(rowType, items, new Object[] { i + 1, c.value, c.count, c.error, c.averageTime(), c.maxTime }));
+        }
+        return table;
+    }
+
+    private static TabularData slowestTable(Slowest.Exemplar[] slowest) throws OpenDataException {
+        String[] items = { "rank", "duration", "timestamp", "thread", "args", "stack" };
+        CompositeType rowType = new CompositeType("SlowCall", "Slow call with details", items,
+            new String[] { "Rank by duration", "Execution time", "Time of exit in milliseconds since epoch", "Thread name",
+                "Argument values", "Stack trace" },
+            new OpenType<?>[] { SimpleType.INTEGER, SimpleType.LONG, SimpleType.LONG, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING });
+        TabularDataSupport table = new TabularDataSupport(new TabularType("SlowCalls", "Slowest calls", rowType, new String[] { "rank" }));
+        for (int i = 0; i < slowest.length; i++) {
+            Slowest.Exemplar e = slowest[i];
+            String args = e.args != null ? String.join(", ", e.args) : "";
+            StringBuilder stack = new StringBuilder();
+            if (e.stack != null) {
+                for (StackTraceElement frame: e.stack) {
+                    stack.append(stack.length() > 0 ? "\n" : "").append(frame);
+                }
+            }
+            table.put(new CompositeDataSupport(rowType, items, new Object[] { i + 1, e.duration, e.timestamp, e.thread, args, stack.toString() }));
+        }
+        return table;
+    }
+
+    /*
+     * Values of all methods and classes since the last reset, each metric
+     * derived from a single read of its cells. Snapshots are serialized,
+     * and when resetting the next interval starts from exactly the values
+     * returned, so the intervals of a collector resetting on every read
+     * add up to the totals without gaps or overlaps.
+     */
+    private static CompositeData snapshot(boolean reset) throws OpenDataException {
+        List<String> methodItems = new ArrayList<>(Arrays.asList("name", "calls", "exit.exception", "exectime.count", "exectime.total",
+            "exectime.minimum", "exectime.average", "exectime.stddev", "exectime.maximum"));
+        List<String> classItems = new ArrayList<>(Arrays.asList("name", "instances.total", "instances.live", "lifetime.count", "lifetime.total",
+            "lifetime.minimum", "lifetime.average", "lifetime.stddev", "lifetime.maximum"));
+        for (String p: percentileNames) {
+            methodItems.add("exectime." + p);
+            classItems.add("lifetime." + p);
+        }
+        methodItems.addAll(Arrays.asList("inflight", "inflight.peak", "inflight.average"));
+        CompositeType methodType = snapshotRowType("MethodSnapshot", "Method metrics", methodItems, 1);
+        CompositeType classType = snapshotRowType("ClassSnapshot", "Class metrics", classItems, 0);
+        TabularDataSupport methods = new TabularDataSupport(new TabularType("MethodSnapshots", "Method metrics", methodType, new String[] { "name" }));
+        TabularDataSupport classes = new TabularDataSupport(new TabularType("ClassSnapshots", "Class metrics", classType, new String[] { "name" }));
+        long start, end;
+
+        synchronized (snapshotLock) {
+            long now = clock.time();
+            start = intervalStart;
+            end = System.currentTimeMillis();
+            for (MethodMetrics m: store.methods()) {
+                if (m == null || !m.hasSeen(MethodMetrics.CALLS | MethodMetrics.EXEC_TIMES | MethodMetrics.EXIT_EXCEPT)) {
+                    continue;
+                }
+                MethodMetrics.Totals t = m.totals(reset);
+                List<Object> values = new ArrayList<>(Arrays.asList(m.name, t.calls, t.exitExcept));
+                addStats(values, t.execTimes, t.execTimesHist);
+                values.addAll(Arrays.asList(m.inFlight.value(), m.inFlight.peak(), m.averageConcurrency(now)));
+                if (reset) {
+                    m.resetConcurrency(now);
+                }
+                methods.put(new CompositeDataSupport(methodType, methodItems.toArray(new String[0]), values.toArray()));
+            }
+            for (ClassMetrics c: store.classes()) {
+                if (c == null || !c.hasSeen(ClassMetrics.INSTANCES)) {
+                    continue;
+                }
+                ClassMetrics.Totals t = c.totals(reset);
+                List<Object> values = new ArrayList<>(Arrays.asList(c.name, t.instances, c.liveInstances()));
+                addStats(values, t.lifetimes, t.lifetimesHist);
+                classes.put(new CompositeDataSupport(classType, classItems.toArray(new String[0]), values.toArray()));
+            }
+            if (reset) {
+                intervalStart = end;
+            }
+        }
+
+        String[] items = { "start", "end", "unit", "methods", "classes" };
+        CompositeType type = new CompositeType("Snapshot", "Metrics since the last reset", items,
+            new String[] { "Start of interval in milliseconds since epoch", "End of interval in milliseconds since epoch", "Unit of times",
+                "Method metrics", "Class metrics" },
+            new OpenType<?>[] { SimpleType.LONG, SimpleType.LONG, SimpleType.STRING, methods.getTabularType(), classes.getTabularType() });
+        return new CompositeDataSupport(type, items, new Object[] { start, end, clock.unit(), methods, classes });
+    }
+
+    // Row of name, Long values and doubles trailing Long values
+    private static CompositeType snapshotRowType(String typeName, String description, List<String> items, int doubles) throws OpenDataException {
+        OpenType<?>[] types = new OpenType<?>[items.size()];
+        Arrays.fill(types, SimpleType.LONG);
+        types[0] = SimpleType.STRING;
+        Arrays.fill(types, types.length - doubles, types.length, SimpleType.DOUBLE);
+        String[] names = items.toArray(new String[0]);
+        return new CompositeType(typeName, description, names, names, types);
+    }
+
+    // Count, total, minimum, average, stddev, maximum and percentiles, 0 when nothing recorded
+    private static void addStats(List<Object> values, StatsCell.Snapshot snap, Histogram.Delta hist) {
+        long[] counts = new long[Histogram.BUCKETS];
+        hist.addTo(counts, 1);
+        boolean any = snap.count > 0 && snap.min <= snap.max;
+        values.addAll(Arrays.asList(snap.count, snap.sum, any ? snap.min : 0L, snap.mean(), snap.stddev(), any ? snap.max : 0L));
+        for (double p: percentiles) {
+            values.add(Histogram.percentile(counts, p));
+        }
+    }
+
+    private static final class Ranked {
+        final String name;
+        final double value;
+
+        Ranked(String name, double value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    /*
+     * The count methods with the highest nonzero values of a metric,
+     * ranked in a bounded heap inside the JVM so that only the winners
+     * are returned to the client.
+     */
+    private static TabularData topMethods(String metric, int count) throws OpenDataException {
+        if (!Arrays.asList(rankings).contains(metric)) {
+            throw new IllegalArgumentException("Unknown metric: " + metric);
+        }
+        if (count <= 0) {
+            throw new IllegalArgumentException("Count must be positive: " + count);
+        }
+        PriorityQueue<Ranked> heap = new PriorityQueue<>(Comparator.comparingDouble((Ranked r) -> r.value));
+        long[] scratch = new long[Histogram.BUCKETS];
+        MethodMetrics[] methods = store.methods();
+        for (int id = 0; id < methods.length; id++) {
+            MethodMetrics m = methods[id];
+            if (m == null || !m.hasSeen(MethodMetrics.CALLS | MethodMetrics.EXEC_TIMES | MethodMetrics.EXIT_EXCEPT)) {
+                continue;
+            }
+            double value = rankValue(m, id, metric, scratch);
+            if (value > 0 && (heap.size() < count || value > heap.peek().value)) {
+                if (heap.size() == count) {
+                    heap.poll();
+                }
+                heap.add(new Ranked(m.name, value));
+            }
+        }
+
+        String[] items = { "rank", "name", "value" };
+        CompositeType rowType = new CompositeType("RankedMethod", "Method with its value of the metric ranked by", items,
+            new String[] { "Rank by value", "Method name", "Value of " + metric },
+            new OpenType<?>[] { SimpleType.INTEGER, SimpleType.STRING, SimpleType.DOUBLE });
+        TabularDataSupport table = new TabularDataSupport(new TabularType("RankedMethods", "Methods ranked by " + metric, rowType, new String[] { "rank" }));
+        for (int rank = heap.size(); rank > 0; rank--) {
+            Ranked r = heap.poll();
+            table.put(new CompositeDataSupport(rowType, items, new Object[] { rank, r.name, r.value }));
+        }
+        return table;
+    }
+
+    private static double rankValue(MethodMetrics m, int id, String metric, long[] scratch) {
+        switch (metric) {
+            case "calls":
+                return m.calls();
+            case "exceptions":
+                return m.exitExcepts();
+            case "total":
+                return m.execSnapshot().sum;
+            case "average":
+                return m.execSnapshot().mean();
+            case "maximum":
+                StatsCell.Snapshot snap = m.execSnapshot();
+                return snap.count > 0 ? snap.max : 0;
+            default:
+                break;
+        }
+        int pct = Arrays.asList(percentileNames).indexOf(metric);
+        if (pct >= 0) {
+            return m.execPercentile(percentiles[pct], scratch);
+        }
+        MetricWindows.Window w = windowOf(id);
+        return w != null ? w.rate(Arrays.asList(rateNames).indexOf(metric.substring("rate.".length()))) : 0;
+    }
+
     public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException, MBeanException, ReflectionException {
     }
 
@@ -215,73 +1131,254 @@ public class JMXHelper extends Helper implements DynamicMBean {
     }
 
     public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
-        return null;
+        CallTree tree = callTree;
+        if (actionName.equals("resetConcurrency")) {
+            long now = clock.time();
+            for (MethodMetrics m: store.methods()) {
+                if (m != null) {
+                    m.resetConcurrency(now);
+                }
+            }
+            return null;
+        } else if (actionName.equals("snapshot") || actionName.equals("snapshotAndReset")) {
+            try {
+                return snapshot(actionName.equals("snapshotAndReset"));
+            } catch (OpenDataException ex) {
+                throw new MBeanException(ex);
+            }
+        } else if (actionName.equals("topMethods")) {
+            if (params == null || params.length != 2 || !(params[0] instanceof String) || !(params[1] instanceof Integer)) {
+                throw new RuntimeOperationsException(new IllegalArgumentException("Expected metric name and count"));
+            }
+            try {
+                return topMethods((String) params[0], (Integer) params[1]);
+            } catch (IllegalArgumentException ex) {
+                throw new RuntimeOperationsException(ex);
+            } catch (OpenDataException ex) {
+                throw new MBeanException(ex);
+            }
+        } else if (tree != null && actionName.equals("callTreeCollapsed")) {
+            return tree.collapsed(store);
+        } else if (tree != null && actionName.equals("callTreeChromeTrace")) {
+            return tree.chromeTrace(store, clock.unit());
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
     }
 
-    public void incrementInstanceCount(String clazz) {
-        instances.computeIfAbsent(clazz, k -> new LongAdder()).increment();
+    public void trackInstance(int classId, Object obj) {
+        ClassMetrics c = store.classMetrics(store.classSlot(classId));
+        if (c != null) {
+            tracker.track(c, obj, InstanceTracker.NO_BIRTH);
+        }
     }
 
-    public void decrementLiveInstanceCount(String clazz) {
-        instancesDone.computeIfAbsent(clazz, k -> new LongAdder()).increment();
+    public void trackInstanceLifetime(int classId, Object obj) {
+        ClassMetrics c = store.classMetrics(store.classSlot(classId));
+        if (c != null) {
+            tracker.track(c, obj, clock.time());
+        }
     }
 
-    public void recordInstanceCreationTime(String clazz, Object obj) {
-        birthdays.put(System.identityHashCode(obj), System.currentTimeMillis());
+    // Records an event directly or, when buffered, through the thread's buffer
+    private static void record(MethodMetrics m, int methodId, int type, int weight, long value) {
+        Aggregator a = aggregator;
+        if (a == null || !a.append(type, methodId, weight, value)) {
+            EventBuffer.apply(m, type, weight, value);
+        }
     }
 
-    public void recordInstanceLifetime(String clazz, Object obj) {
-        int id = System.identityHashCode(obj);
-        long lifetime = System.currentTimeMillis() - birthdays.get(id);
-        lifetimesTot.computeIfAbsent(clazz, k -> new LongAdder()).add(lifetime);
-        if (recordInstMinLife) {
-            lifetimesMin.putIfAbsent(clazz, lifetime);
-            if (lifetime < lifetimesMin.get(clazz)) {
-                lifetimesMin.replace(clazz, lifetime);
-            }
+    /*
+     * With sampling the rules report 1-in-rate calls and the governor
+     * may sample them further, so each recorded call is weighted to
+     * estimate the totals. Minimum and maximum are of the sampled calls
+     * only.
+     */
+    public void incrementMethodCallCount(int methodId) {
+        incrementMethodCallCount(methodId, 1);
+    }
+
+    public void incrementMethodCallCount(int methodId, int rate) {
+        countCall(methodId, rate, false, null);
+    }
+
+    // Call count also broken down by the value of a dimension expression
+    public void incrementMethodCallCount(int methodId, int rate, Object dim) {
+        countCall(methodId, rate, true, dim);
+    }
+
+    private void countCall(int ruleId, int rate, boolean hasDim, Object dim) {
+        int methodId = store.methodSlot(ruleId);
+        MethodMetrics m = store.methodMetrics(methodId);
+        if (m == null) {
+            return;
         }
-        if (recordInstMaxLife) {
-            lifetimesMax.putIfAbsent(clazz, lifetime);
-            if (lifetime > lifetimesMax.get(clazz)) {
-                lifetimesMax.replace(clazz, lifetime);
+        m.sampleRate(rate);
+        int governRate = m.governRate;
+        if (governRate == 1 || ThreadLocalRandom.current().nextInt(governRate) == 0) {
+            int weight = m.weight(rate);
+            record(m, methodId, EventBuffer.CALL, weight, 0);
+            if (hasDim) {
+                m.dims(topK * TOP_K_SPARE).record(TopK.key(dim), weight, -1);
             }
         }
-        instancesDone.computeIfAbsent(clazz, k -> new LongAdder()).increment();
-        birthdays.remove(id);
     }
 
-    public void incrementMethodCallCount(String clazz, String method) {
-        callCounts.computeIfAbsent(cleanName(clazz + sep + method), k -> new LongAdder()).increment();
+    public void recordMethodCallTime(int methodId) {
+        recordMethodCallTime(methodId, 1);
+    }
+
+    // Every call is pushed so that exits always match their entries, even
+    // those of unsampled recursive calls which a rule condition cannot tell
+    public void recordMethodCallTime(int methodId, int rate) {
+        startCall(methodId, rate, false, null);
     }
 
-    public void recordMethodCallTime(String clazz, String method) {
-        callTimes.put(clazz + sep + method + Long.toString(Thread.currentThread().getId()), System.currentTimeMillis());
+    // Exec time also broken down by the value of a dimension expression
+    public void recordMethodCallTime(int methodId, int rate, Object dim) {
+        startCall(methodId, rate, true, dim);
     }
 
-    public void recordMethodExecTime(String clazz, String method) {
-        String id = clazz + sep + method + Long.toString(Thread.currentThread().getId());
-        long exectime = System.currentTimeMillis() - callTimes.get(id);
-        String key = cleanName(clazz + sep + method);
-        execTimesTot.computeIfAbsent(key, k -> new LongAdder()).add(exectime);
-        if (recordMinExecTime) {
-            execTimesMin.putIfAbsent(key, exectime);
-            if (exectime < execTimesMin.get(key)) {
-                execTimesMin.replace(key, exectime);
+    /*
+     * In count-only mode set by the governor the calls are still pushed
+     * so that calls in flight and call trees stay right, but only the
+     * sampled ones are counted, unless counted by rules of their own,
+     * and none are timed.
+     */
+    private void startCall(int ruleId, int rate, boolean hasDim, Object dim) {
+        // Clock is only known once declared
+        int methodId = store.methodSlot(ruleId);
+        MethodMetrics m = store.methodMetrics(methodId);
+        if (m == null) {
+            return;
+        }
+        m.sampleRate(rate);
+        boolean timed = m.timed;
+        int weight = m.weight(rate);
+        boolean sampled = weight == 1 || ThreadLocalRandom.current().nextInt(weight) == 0;
+        CallStack stack = callStacks.get();
+        stack.push(methodId, sampled && timed ? clock.time() : CallStack.SKIPPED, weight);
+        if (hasDim && sampled) {
+            if (timed) {
+                stack.setTopDim(TopK.key(dim));
+            } else {
+                m.dims(topK * TOP_K_SPARE).record(TopK.key(dim), weight, -1);
+            }
+        }
+        if (sampled && !timed && !callsCounted) {
+            record(m, methodId, EventBuffer.CALL, weight, 0);
+        }
+        m.inFlight.increment();
+        m.seen(MethodMetrics.STARTS);
+        CallTree tree = callTree;
+        if (tree != null) {
+            stack.enter(tree);
+            if (sampled && !timed) {
+                stack.topNode().calls += weight;
             }
         }
-        if (recordMaxExecTime) {
-            execTimesMax.putIfAbsent(key, exectime);
-            if (exectime > execTimesMax.get(key)) {
-                execTimesMax.replace(key, exectime);
+    }
+
+    public void recordMethodExecTime(int methodId) {
+        CallStack stack = callStacks.get();
+        endCall(stack, store.methodSlot(methodId));
+        stack.clearArgs();
+    }
+
+    private void endCall(CallStack stack, int methodId) {
+        // Call started before the rules were loaded
+        if (!stack.isTop(methodId)) {
+            return;
+        }
+        int weight = stack.topWeight();
+        CallTree.Node node = stack.topNode();
+        Object dim = stack.topDim();
+        long start = stack.pop();
+        // Only declared methods are pushed
+        MethodMetrics m = store.methodMetrics(methodId);
+        m.inFlight.decrement();
+        if (start == CallStack.SKIPPED) {
+            return;
+        }
+        long exectime = clock.time() - start;
+        if (node != null) {
+            node.calls += weight;
+            node.time += exectime * weight;
+        }
+        if (dim != null) {
+            m.dims(topK * TOP_K_SPARE).record(dim, weight, exectime);
+        }
+        record(m, methodId, recordExecTimePct ? EventBuffer.EXEC_TIME_HIST : EventBuffer.EXEC_TIME, weight, exectime);
+        Slowest slowest = m.slowest;
+        if (slowest != null && slowest.qualifies(exectime)) {
+            StackTraceElement[] trace = slowestStacks ? callerStackTrace() : null;
+            slowest.offer(new Slowest.Exemplar(exectime, System.currentTimeMillis(), Thread.currentThread().getName(), stack.takeArgs(), trace));
+        }
+    }
+
+    // Stack trace of the instrumented method, without helper and Byteman frames
+    private static StackTraceElement[] callerStackTrace() {
+        StackTraceElement[] trace = new Throwable().getStackTrace();
+        int i = 0;
+        while (i < trace.length && trace[i].getClassName().startsWith("org.jboss.byteman.")) {
+            i++;
+        }
+        return Arrays.copyOfRange(trace, i, trace.length);
+    }
+
+    // Argument values of a call for its exemplar, passed just before its exit is recorded
+    public void exemplarArgs(Object a0) {
+        callStacks.get().stashArgs(1, a0, null, null);
+    }
+
+    public void exemplarArgs(Object a0, Object a1) {
+        callStacks.get().stashArgs(2, a0, a1, null);
+    }
+
+    public void exemplarArgs(Object a0, Object a1, Object a2) {
+        callStacks.get().stashArgs(3, a0, a1, a2);
+    }
+
+    public void incrementMethodExitExceptCount(int methodId) {
+        incrementMethodExitExceptCount(methodId, 1);
+    }
+
+    public void incrementMethodExitExceptCount(int methodId, int rate) {
+        int id = store.methodSlot(methodId);
+        MethodMetrics m = store.methodMetrics(id);
+        if (m != null) {
+            int governRate = m.governRate;
+            if (governRate == 1 || ThreadLocalRandom.current().nextInt(governRate) == 0) {
+                record(m, id, EventBuffer.EXIT_EXCEPT, m.weight(rate), 0);
             }
         }
-        callTimes.remove(id);
+        recordMethodExecTime(methodId);
+    }
+
+    public void traceMethodEntry(int methodId) {
+        TraceRing t = trace;
+        if (t != null) {
+            t.record(TraceRing.ENTRY, store.methodSlot(methodId), 0);
+        }
+    }
+
+    public void traceMethodEntry(int methodId, Object[] args) {
+        TraceRing t = trace;
+        if (t != null) {
+            t.record(TraceRing.ENTRY, store.methodSlot(methodId), TraceRing.argHash(args));
+        }
+    }
+
+    public void traceMethodExit(int methodId) {
+        TraceRing t = trace;
+        if (t != null) {
+            t.record(TraceRing.EXIT, store.methodSlot(methodId), 0);
+        }
     }
 
-    public void incrementMethodExitExceptCount(String clazz, String method) {
-        exitExcept.computeIfAbsent(cleanName(clazz + sep + method), k -> new LongAdder()).increment();
-        if (!callTimes.isEmpty()) {
-            recordMethodExecTime(clazz, method);
+    public void traceMethodExitExcept(int methodId) {
+        TraceRing t = trace;
+        if (t != null) {
+            t.record(TraceRing.EXIT_EXCEPT, store.methodSlot(methodId), 0);
         }
     }
 }
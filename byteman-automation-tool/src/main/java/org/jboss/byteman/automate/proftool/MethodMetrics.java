@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Metrics of one monitored method, indexed by the method ID assigned
+ * by RuleCreator.
+ */
+final class MethodMetrics {
+    // Kinds of metrics recorded, see seen()
+    static final int CALLS = 1;
+    static final int STARTS = 2;
+    static final int EXEC_TIMES = 4;
+    static final int EXIT_EXCEPT = 8;
+    static final int DIMS = 16;
+    static final int SAMPLED = 32;
+    static final int WINDOW = 64;
+    static final int RATES = 128;
+
+    final String name;
+    private final MetricStore store;
+    private volatile int seen = 0;
+    final LongAdder calls = new LongAdder();
+    final StatsCell execTimes = new StatsCell();
+    final Histogram execTimesHist = new Histogram();
+    final LongAdder exitExcept = new LongAdder();
+    final Gauge inFlight = new Gauge();
+    // Heavy hitters of the dimension values, created on first value
+    private volatile TopK dims = null;
+    // Slowest calls, null unless enabled
+    volatile Slowest slowest = null;
+    // Start of the average concurrency window and exec time total then
+    volatile long concurrencyStart = 0;
+    volatile long concurrencyBase = 0;
+    // 1-in-N sampling rate of the rules, as last seen
+    volatile int sampleRate = 1;
+    // Cumulative values at the last reset, subtracted when reporting
+    private volatile Totals base = Totals.ZERO;
+
+    // Events recorded and their rate, and downgrades set by Governor
+    final LongAdder events = new LongAdder();
+    volatile long eventRate = 0;
+    volatile int governRate = 1;
+    volatile boolean timed = true;
+
+    MethodMetrics(String name, MetricStore store) {
+        this.name = name;
+        this.store = store;
+    }
+
+    /*
+     * Notes kinds of metrics recorded, announcing the first ones to the
+     * store so that the attributes are listed again only when there are
+     * new ones. Afterwards this is a single volatile read.
+     */
+    void seen(int kind) {
+        if ((seen & kind) != kind) {
+            markSeen(kind);
+        }
+    }
+
+    private synchronized void markSeen(int kind) {
+        seen |= kind;
+        store.changed();
+    }
+
+    boolean hasSeen(int kinds) {
+        return (seen & kinds) != 0;
+    }
+
+    // Weight of a call recorded at the given rule rate with governor sampling
+    int weight(int rate) {
+        return (int) Math.min((long) rate * governRate, Integer.MAX_VALUE);
+    }
+
+    void recordCall(int weight) {
+        calls.add(weight);
+        events.increment();
+        seen(CALLS);
+    }
+
+    void recordExecTime(long exectime, int weight, boolean histogram) {
+        execTimes.record(exectime, weight);
+        if (histogram) {
+            execTimesHist.record(exectime, weight);
+        }
+        events.increment();
+        seen(EXEC_TIMES);
+    }
+
+    void recordExitExcept(int weight) {
+        exitExcept.add(weight);
+        events.increment();
+        seen(EXIT_EXCEPT);
+    }
+
+    /*
+     * Reported values of the counters. The cells themselves are never
+     * reset so that the background views computing their own changes
+     * from them stay correct.
+     */
+    static final class Totals {
+        static final Totals ZERO = new Totals(0, 0, new StatsCell.Snapshot(), Histogram.Delta.EMPTY);
+
+        final long calls;
+        final long exitExcept;
+        final StatsCell.Snapshot execTimes;
+        final Histogram.Delta execTimesHist;
+
+        Totals(long calls, long exitExcept, StatsCell.Snapshot execTimes, Histogram.Delta execTimesHist) {
+            this.calls = calls;
+            this.exitExcept = exitExcept;
+            this.execTimes = execTimes;
+            this.execTimesHist = execTimesHist;
+        }
+    }
+
+    long calls() {
+        return calls.sum() - base.calls;
+    }
+
+    long exitExcepts() {
+        return exitExcept.sum() - base.exitExcept;
+    }
+
+    StatsCell.Snapshot execSnapshot() {
+        return execTimes.snapshot().minus(base.execTimes);
+    }
+
+    long execPercentile(double percentile) {
+        return execPercentile(percentile, new long[Histogram.BUCKETS]);
+    }
+
+    // As execPercentile(percentile), using counts as scratch space
+    long execPercentile(double percentile, long[] counts) {
+        execTimesHist.counts(counts);
+        base.execTimesHist.addTo(counts, -1);
+        return Histogram.percentile(counts, percentile);
+    }
+
+    /*
+     * Values since the last reset, optionally starting the next interval
+     * from exactly the values returned so that consecutive intervals
+     * neither lose nor repeat a recorded call.
+     */
+    synchronized Totals totals(boolean reset) {
+        Totals b = base;
+        long calls = this.calls.sum();
+        long exitExcept = this.exitExcept.sum();
+        StatsCell.Snapshot execTimes = this.execTimes.snapshot(reset);
+        long[] counts = execTimesHist.counts();
+        long[] baseCounts = new long[counts.length];
+        b.execTimesHist.addTo(baseCounts, 1);
+        if (reset) {
+            base = new Totals(calls, exitExcept, execTimes, Histogram.Delta.of(counts));
+            dims = null;
+            if (slowest != null) {
+                slowest = new Slowest(slowest.capacity());
+            }
+        }
+        return new Totals(calls - b.calls, exitExcept - b.exitExcept, execTimes.minus(b.execTimes), Histogram.Delta.between(baseCounts, counts));
+    }
+
+    TopK dims() {
+        return dims;
+    }
+
+    TopK dims(int capacity) {
+        TopK d = dims;
+        if (d == null) {
+            synchronized (this) {
+                d = dims;
+                if (d == null) {
+                    d = dims = new TopK(capacity);
+                    seen(DIMS);
+                }
+            }
+        }
+        return d;
+    }
+
+    void resetConcurrency(long now) {
+        inFlight.resetPeak();
+        concurrencyBase = execTimes.snapshot().sum;
+        concurrencyStart = now;
+    }
+
+    /*
+     * Time-weighted average number of calls in flight since the window
+     * start, by Little's law the total execution time of the calls
+     * completed during the window divided by its length.
+     */
+    double averageConcurrency(long now) {
+        long start = concurrencyStart;
+        return now > start ? (double) (execTimes.snapshot().sum - concurrencyBase) / (now - start) : 0;
+    }
+
+    void sampleRate(int rate) {
+        if (sampleRate != rate) {
+            sampleRate = rate;
+            if (rate != 1) {
+                seen(SAMPLED);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Array based store of all metrics. Rules refer to classes and methods
+ * by the integer IDs assigned by RuleCreator so recording an event is a
+ * plain array access; the names are declared when the MBean gets
+ * registered and only used when serving JMX requests. Metrics are kept
+ * by name under IDs of their own for as long as the helper is loaded,
+ * the rule IDs only mapping to them: rules reloaded for edited targets
+ * number the methods anew, and map their IDs to the metrics of the
+ * same names or to new ones.
+ */
+final class MetricStore {
+    private volatile ClassMetrics[] classes = new ClassMetrics[0];
+    private volatile MethodMetrics[] methods = new MethodMetrics[0];
+    // Store IDs by the rule IDs, -1 if not declared
+    private volatile int[] classSlots = new int[0];
+    private volatile int[] methodSlots = new int[0];
+    private final Map<String, Integer> classIds = new ConcurrentHashMap<>();
+    private final Map<String, Integer> methodIds = new ConcurrentHashMap<>();
+    // Changed whenever a metric is declared or first recorded
+    private final AtomicLong version = new AtomicLong();
+
+    long version() {
+        return version.get();
+    }
+
+    void changed() {
+        version.incrementAndGet();
+    }
+
+    ClassMetrics classMetrics(int id) {
+        ClassMetrics[] c = classes;
+        return id >= 0 && id < c.length ? c[id] : null;
+    }
+
+    MethodMetrics methodMetrics(int id) {
+        MethodMetrics[] m = methods;
+        return id >= 0 && id < m.length ? m[id] : null;
+    }
+
+    ClassMetrics classMetrics(String name) {
+        Integer id = classIds.get(name);
+        return id != null ? classMetrics(id) : null;
+    }
+
+    // ID of the named method, -1 if not declared
+    int methodId(String name) {
+        Integer id = methodIds.get(name);
+        return id != null ? id : -1;
+    }
+
+    MethodMetrics methodMetrics(String name) {
+        Integer id = methodIds.get(name);
+        return id != null ? methodMetrics(id) : null;
+    }
+
+    ClassMetrics[] classes() {
+        return classes;
+    }
+
+    MethodMetrics[] methods() {
+        return methods;
+    }
+
+    // Store ID of the class a rule refers to by ruleId, -1 if not declared
+    int classSlot(int ruleId) {
+        int[] s = classSlots;
+        return ruleId >= 0 && ruleId < s.length ? s[ruleId] : -1;
+    }
+
+    // Store ID of the method a rule refers to by ruleId, -1 if not declared
+    int methodSlot(int ruleId) {
+        int[] s = methodSlots;
+        return ruleId >= 0 && ruleId < s.length ? s[ruleId] : -1;
+    }
+
+    // Maps the rule IDs from firstRuleId on to the named classes, returning their store IDs
+    synchronized int[] declareClasses(int firstRuleId, String[] names) {
+        ClassMetrics[] c = classes;
+        int[] ids = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Integer id = classIds.get(names[i]);
+            if (id == null) {
+                id = c.length;
+                c = Arrays.copyOf(c, id + 1);
+                c[id] = new ClassMetrics(names[i], this);
+                classIds.put(names[i], id);
+            }
+            ids[i] = id;
+        }
+        classes = c;
+        classSlots = slots(classSlots, firstRuleId, ids);
+        changed();
+        return ids;
+    }
+
+    // Maps the rule IDs from firstRuleId on to the named methods, returning their store IDs
+    synchronized int[] declareMethods(int firstRuleId, String[] names) {
+        MethodMetrics[] m = methods;
+        int[] ids = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Integer id = methodIds.get(names[i]);
+            if (id == null) {
+                id = m.length;
+                m = Arrays.copyOf(m, id + 1);
+                m[id] = new MethodMetrics(names[i], this);
+                methodIds.put(names[i], id);
+            }
+            ids[i] = id;
+        }
+        methods = m;
+        methodSlots = slots(methodSlots, firstRuleId, ids);
+        changed();
+        return ids;
+    }
+
+    private static int[] slots(int[] slots, int firstRuleId, int[] ids) {
+        int[] s = Arrays.copyOf(slots, Math.max(slots.length, firstRuleId + ids.length));
+        Arrays.fill(s, slots.length, s.length, -1);
+        System.arraycopy(ids, 0, s, firstRuleId, ids.length);
+        return s;
+    }
+}
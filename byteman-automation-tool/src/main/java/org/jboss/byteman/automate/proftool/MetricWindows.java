@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Time-windowed views of the cumulative method metrics, kept up to date
+ * by a background thread so that reading them never scans history.
+ * Every TICK seconds the call count of each method with calls recorded
+ * is folded into 1, 5 and 15 minute exponentially weighted moving
+ * average rates as done by the Unix load average. When a window length
+ * is given, every minute the change of the execution time histogram and
+ * totals of each method with execution times recorded during the minute
+ * is pushed on a ring of the last minutes, the totals kept summed over
+ * the ring. Windowed values thus cover the completed minutes of the
+ * window and the minute in progress. Histogram changes and the counts
+ * at the start of the minute are kept as sparse deltas, so a window
+ * only takes space for the buckets its method has used.
+ */
+final class MetricWindows implements Runnable {
+    static final int TICK = 5;
+    private static final int TICKS_PER_SLOT = 60 / TICK;
+    private static final double[] EWMA_MINUTES = { 1, 5, 15 };
+
+    private final MetricStore store;
+    private final int minutes;
+    private Window[] windows = new Window[0];
+    private volatile Thread ticker;
+    private int ticks = 0;
+    // Histogram counts read at rotation, only used by the ticker thread
+    private final long[] scratch = new long[Histogram.BUCKETS];
+
+    // Window of minutes, zero for call rates only
+    MetricWindows(MetricStore store, int minutes) {
+        if (minutes < 0) {
+            throw new IllegalArgumentException("Window must not be negative: " + minutes);
+        }
+        this.store = store;
+        this.minutes = minutes;
+    }
+
+    int minutes() {
+        return minutes;
+    }
+
+    // Changes of the execution time metrics of a method during one minute
+    private static final class Slot {
+        final Histogram.Delta hist;
+        final long count;
+        final long sum;
+
+        Slot(Histogram.Delta hist, long count, long sum) {
+            this.hist = hist;
+            this.count = count;
+            this.sum = sum;
+        }
+    }
+
+    static final class Window {
+        private final double[] rates = new double[EWMA_MINUTES.length];
+        private boolean ratesStarted = false;
+        private long lastCalls = 0;
+
+        // Null until execution times are recorded, and without a window length
+        private Slot[] ring = null;
+        private int next = 0;
+        private long countSum;
+        private long timeSum;
+        // Cumulative values at the start of the minute in progress
+        private Histogram.Delta histStart;
+        private long countStart;
+        private long timeStart;
+
+        private static long calls(MethodMetrics m) {
+            long calls = m.calls.sum();
+            return calls > 0 ? calls : m.execTimes.snapshot().count;
+        }
+
+        synchronized void tick(MethodMetrics m) {
+            long calls = calls(m);
+            double rate = (double) (calls - lastCalls) / TICK;
+            lastCalls = calls;
+            for (int i = 0; i < rates.length; i++) {
+                double alpha = 1 - Math.exp(-TICK / 60.0 / EWMA_MINUTES[i]);
+                rates[i] = ratesStarted ? rates[i] + alpha * (rate - rates[i]) : rate;
+            }
+            ratesStarted = true;
+        }
+
+        // Starts the window from the current values, once exec times are recorded
+        synchronized boolean startRing(MethodMetrics m, int slots, long[] scratch) {
+            if (ring != null) {
+                return false;
+            }
+            StatsCell.Snapshot snap = m.execTimes.snapshot();
+            if (snap.count == 0) {
+                return false;
+            }
+            histStart = Histogram.Delta.of(m.execTimesHist.counts(scratch));
+            countStart = snap.count;
+            timeStart = snap.sum;
+            ring = new Slot[slots];
+            return true;
+        }
+
+        synchronized void rotate(MethodMetrics m, long[] scratch) {
+            if (ring == null) {
+                return;
+            }
+            long[] hist = m.execTimesHist.counts(scratch);
+            StatsCell.Snapshot snap = m.execTimes.snapshot();
+            histStart.addTo(hist, -1);
+            Slot slot = new Slot(Histogram.Delta.of(hist), snap.count - countStart, snap.sum - timeStart);
+            histStart.addTo(hist, 1);
+            Slot old = ring[next];
+            if (old != null) {
+                countSum -= old.count;
+                timeSum -= old.sum;
+            }
+            countSum += slot.count;
+            timeSum += slot.sum;
+            ring[next] = slot;
+            next = (next + 1) % ring.length;
+            histStart = Histogram.Delta.of(hist);
+            countStart = snap.count;
+            timeStart = snap.sum;
+        }
+
+        // Calls per second averaged over the i'th of 1, 5 and 15 minutes
+        synchronized double rate(int i) {
+            return rates[i];
+        }
+
+        synchronized long average(MethodMetrics m) {
+            if (ring == null) {
+                return 0;
+            }
+            StatsCell.Snapshot snap = m.execTimes.snapshot();
+            long count = countSum + snap.count - countStart;
+            return count > 0 ? (timeSum + snap.sum - timeStart) / count : 0;
+        }
+
+        synchronized long percentile(MethodMetrics m, double percentile) {
+            if (ring == null) {
+                return 0;
+            }
+            long[] counts = m.execTimesHist.counts();
+            histStart.addTo(counts, -1);
+            for (Slot slot: ring) {
+                if (slot != null) {
+                    slot.hist.addTo(counts, 1);
+                }
+            }
+            return Histogram.percentile(counts, percentile);
+        }
+    }
+
+    // Window of a method, null until its first calls
+    synchronized Window window(int id) {
+        return id < windows.length ? windows[id] : null;
+    }
+
+    public void run() {
+        Thread self = Thread.currentThread();
+        while (ticker == self) {
+            LockSupport.parkNanos(TICK * 1_000_000_000L);
+            if (ticker == self) {
+                tick();
+            }
+        }
+    }
+
+    private void tick() {
+        MethodMetrics[] methods = store.methods();
+        boolean rotate = ++ticks % TICKS_PER_SLOT == 0;
+        for (int i = 0; i < methods.length; i++) {
+            MethodMetrics m = methods[i];
+            if (m == null) {
+                continue;
+            }
+            Window w = window(i);
+            if (w == null) {
+                if (Window.calls(m) == 0) {
+                    continue;
+                }
+                w = newWindow(i, m);
+            }
+            w.tick(m);
+            if (minutes > 0) {
+                if (w.startRing(m, minutes, scratch)) {
+                    m.seen(MethodMetrics.WINDOW);
+                } else if (rotate) {
+                    w.rotate(m, scratch);
+                }
+            }
+        }
+    }
+
+    private synchronized Window newWindow(int id, MethodMetrics m) {
+        if (id >= windows.length) {
+            windows = Arrays.copyOf(windows, id + 1);
+        }
+        windows[id] = new Window();
+        m.seen(MethodMetrics.RATES);
+        return windows[id];
+    }
+
+    synchronized void start() {
+        if (ticker == null) {
+            ticker = new Thread(this, "ProfTool metric windows");
+            ticker.setDaemon(true);
+            ticker.start();
+        }
+    }
+
+    synchronized void stop() {
+        Thread t = ticker;
+        ticker = null;
+        LockSupport.unpark(t);
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Publishes the metrics in a memory-mapped file in the PCP MMV format
+ * so that pmdammv, reading the files under $PCP_TMP_DIR/mmv, serves
+ * them to PCP clients without JMX being involved. Methods and classes
+ * are the instances of two instance domains, the metrics having one
+ * value per instance, so the number of PCP metrics stays fixed however
+ * many methods are instrumented. The values are updated in place in
+ * the mapping by a background thread every interval from the
+ * cumulative counters; instrumented threads keep recording to their
+ * striped cells and never touch the shared mapping. When methods or
+ * classes are declared the file is rewritten with a new generation
+ * number, a new file being filled and then renamed over the old one so
+ * that readers never see it half written.
+ *
+ * File layout, version 2, native byte order:
+ *   header (40 bytes): magic "MMV\0", version, generation twice, TOC
+ *     entry count, flags, process ID, preferred PMID cluster
+ *   TOC entries (16 bytes each): section type, entry count, offset
+ *   instance domains (32 bytes each): serial, instance count, offset
+ *     of the first instance, short and long help string offsets
+ *   instances (24 bytes each): instance domain offset, padding,
+ *     internal ID, external name string offset
+ *   metrics (48 bytes each): name string offset, item, type,
+ *     semantics, units, instance domain serial, padding, short and
+ *     long help string offsets
+ *   values (32 bytes each): value, extra, metric offset, instance offset
+ *   strings (256 bytes each): NUL-terminated UTF-8
+ */
+final class MmvExporter implements Runnable {
+    private static final int VERSION = 2;
+    private static final int FLAG_PROCESS = 2;
+    private static final int HEADER_SIZE = 40;
+    private static final int TOC_SIZE = 16;
+    private static final int INDOM_SIZE = 32;
+    private static final int INSTANCE_SIZE = 24;
+    private static final int METRIC_SIZE = 48;
+    private static final int VALUE_SIZE = 32;
+    private static final int STRING_SIZE = 256;
+
+    private static final int TOC_INDOMS = 1;
+    private static final int TOC_INSTANCES = 2;
+    private static final int TOC_METRICS = 3;
+    private static final int TOC_VALUES = 4;
+    private static final int TOC_STRINGS = 5;
+
+    private static final int TYPE_I64 = 2;
+    private static final int TYPE_U64 = 3;
+    private static final int SEM_COUNTER = 1;
+    private static final int SEM_INSTANT = 3;
+
+    private static final int METHODS = 1;
+    private static final int CLASSES = 2;
+
+    private static final int UNITS_COUNT = 1 << 20;
+    private static final int UNITS_NSEC = 1 << 24;
+    private static final int UNITS_MSEC = 1 << 24 | 2 << 12;
+
+    private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+    private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+    private static final class Metric {
+        final String name;
+        final int indom;
+        final int type;
+        final int semantics;
+        final int units;
+        final String help;
+
+        Metric(String name, int indom, int type, int semantics, int units, String help) {
+            this.name = name;
+            this.indom = indom;
+            this.type = type;
+            this.semantics = semantics;
+            this.units = units;
+            this.help = help;
+        }
+    }
+
+    private final MetricStore store;
+    private final File file;
+    private final long intervalNanos;
+    // Metrics of methods first, then of classes, in the order published
+    private final Metric[] metrics;
+    private final int methodMetrics;
+    private final int cluster;
+    private volatile Thread publisher;
+    private final long[] counts = new long[Histogram.BUCKETS];
+
+    private MappedByteBuffer buffer;
+    private long generation = 0;
+    // Instances of the file being published and the offset of their values
+    private MethodMetrics[] methods = new MethodMetrics[0];
+    private ClassMetrics[] classes = new ClassMetrics[0];
+    private int methodValues;
+    private int classValues;
+
+    MmvExporter(MetricStore store, Clock clock, boolean execPercentiles, String fileName, long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Publish interval must be positive: " + intervalMillis);
+        }
+        this.store = store;
+        this.file = new File(fileName);
+        this.intervalNanos = intervalMillis * 1_000_000L;
+        this.cluster = file.getName().hashCode() & 0xfff;
+        int time = clock.unit().equals("ms") ? UNITS_MSEC : UNITS_NSEC;
+        Metric[] m = {
+            new Metric("method.calls", METHODS, TYPE_U64, SEM_COUNTER, UNITS_COUNT, "Calls of the method"),
+            new Metric("method.exceptions", METHODS, TYPE_U64, SEM_COUNTER, UNITS_COUNT, "Exits of the method via exceptions"),
+            new Metric("method.inflight", METHODS, TYPE_I64, SEM_INSTANT, UNITS_COUNT, "Calls of the method in flight"),
+            new Metric("method.exectime.count", METHODS, TYPE_U64, SEM_COUNTER, UNITS_COUNT, "Execution times of the method recorded"),
+            new Metric("method.exectime.total", METHODS, TYPE_U64, SEM_COUNTER, time, "Total execution time of the method"),
+        };
+        if (execPercentiles) {
+            m = Arrays.copyOf(m, m.length + PERCENTILES.length);
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                m[m.length - PERCENTILES.length + i] = new Metric("method.exectime." + PERCENTILE_NAMES[i], METHODS, TYPE_U64, SEM_INSTANT, time,
+                    PERCENTILES[i] + "th percentile of execution times of the method since start");
+            }
+        }
+        this.methodMetrics = m.length;
+        Metric[] c = {
+            new Metric("class.instances.total", CLASSES, TYPE_U64, SEM_COUNTER, UNITS_COUNT, "Instances of the class created"),
+            new Metric("class.instances.live", CLASSES, TYPE_I64, SEM_INSTANT, UNITS_COUNT, "Instances of the class not yet garbage collected"),
+            new Metric("class.lifetime.count", CLASSES, TYPE_U64, SEM_COUNTER, UNITS_COUNT, "Lifetimes of instances of the class recorded"),
+            new Metric("class.lifetime.total", CLASSES, TYPE_U64, SEM_COUNTER, time, "Total lifetime of instances of the class"),
+        };
+        m = Arrays.copyOf(m, m.length + c.length + PERCENTILES.length);
+        System.arraycopy(c, 0, m, methodMetrics, c.length);
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            m[methodMetrics + c.length + i] = new Metric("class.lifetime." + PERCENTILE_NAMES[i], CLASSES, TYPE_U64, SEM_INSTANT, time,
+                PERCENTILES[i] + "th percentile of lifetimes of instances of the class since start");
+        }
+        this.metrics = m;
+    }
+
+    public void run() {
+        Thread self = Thread.currentThread();
+        while (publisher == self) {
+            publish();
+            LockSupport.parkNanos(intervalNanos);
+        }
+    }
+
+    synchronized void publish() {
+        try {
+            MethodMetrics[] allMethods = store.methods();
+            ClassMetrics[] allClasses = store.classes();
+            MethodMetrics[] methods = declared(allMethods);
+            ClassMetrics[] classes = declared(allClasses);
+            if (buffer == null || methods.length != this.methods.length || classes.length != this.classes.length) {
+                write(methods, ids(methods, allMethods), classes, ids(classes, allClasses));
+            }
+            for (int i = 0; i < methods.length; i++) {
+                MethodMetrics m = methods[i];
+                int pos = methodValues + i * methodMetrics * VALUE_SIZE;
+                StatsCell.Snapshot snap = m.execTimes.snapshot();
+                buffer.putLong(pos, m.calls.sum());
+                buffer.putLong(pos + VALUE_SIZE, m.exitExcept.sum());
+                buffer.putLong(pos + 2 * VALUE_SIZE, m.inFlight.value());
+                buffer.putLong(pos + 3 * VALUE_SIZE, snap.count);
+                buffer.putLong(pos + 4 * VALUE_SIZE, snap.sum);
+                if (methodMetrics > 5) {
+                    percentiles(pos + 5 * VALUE_SIZE, m.execTimesHist);
+                }
+            }
+            int classMetrics = metrics.length - methodMetrics;
+            for (int i = 0; i < classes.length; i++) {
+                ClassMetrics c = classes[i];
+                int pos = classValues + i * classMetrics * VALUE_SIZE;
+                StatsCell.Snapshot snap = c.lifetimes.snapshot();
+                buffer.putLong(pos, c.instances.sum());
+                buffer.putLong(pos + VALUE_SIZE, c.liveInstances());
+                buffer.putLong(pos + 2 * VALUE_SIZE, snap.count);
+                buffer.putLong(pos + 3 * VALUE_SIZE, snap.sum);
+                percentiles(pos + 4 * VALUE_SIZE, c.lifetimesHist);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            buffer = null;
+        }
+    }
+
+    private void percentiles(int pos, Histogram hist) {
+        hist.counts(counts);
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            buffer.putLong(pos + i * VALUE_SIZE, Histogram.percentile(counts, PERCENTILES[i]));
+        }
+    }
+
+    // Declared metrics without the gaps of undeclared IDs
+    private static <T> T[] declared(T[] metrics) {
+        T[] declared = metrics.clone();
+        int n = 0;
+        for (T m: metrics) {
+            if (m != null) {
+                declared[n++] = m;
+            }
+        }
+        return Arrays.copyOf(declared, n);
+    }
+
+    // Writes a new file for the given instances, values being zero until published
+    private void write(MethodMetrics[] methods, int[] methodIds, ClassMetrics[] classes, int[] classIds) throws IOException {
+        int[] indomCounts = { methods.length, classes.length };
+        int indoms = (methods.length > 0 ? 1 : 0) + (classes.length > 0 ? 1 : 0);
+        int tocs = indoms > 0 ? 5 : 0;
+        int instances = methods.length + classes.length;
+        int metricCount = (methods.length > 0 ? methodMetrics : 0) + (classes.length > 0 ? metrics.length - methodMetrics : 0);
+        int values = methods.length * methodMetrics + classes.length * (metrics.length - methodMetrics);
+        int strings = indoms * 2 + metricCount * 2 + instances;
+
+        long indomsAt = HEADER_SIZE + tocs * TOC_SIZE;
+        long instancesAt = indomsAt + indoms * INDOM_SIZE;
+        long metricsAt = instancesAt + instances * INSTANCE_SIZE;
+        long valuesAt = metricsAt + metricCount * METRIC_SIZE;
+        long stringsAt = valuesAt + values * VALUE_SIZE;
+        long size = stringsAt + strings * STRING_SIZE;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("MMV file too large: " + size);
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        File tmp = new File(parent, "." + file.getName() + ".tmp");
+        MappedByteBuffer b;
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(0);
+            raf.setLength(size);
+            b = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        b.order(ByteOrder.nativeOrder());
+
+        generation = Math.max(generation + 1, System.currentTimeMillis());
+        b.put(0, (byte) 'M').put(1, (byte) 'M').put(2, (byte) 'V');
+        b.putInt(4, VERSION);
+        b.putLong(8, generation);
+        b.putLong(16, generation);
+        b.putInt(24, tocs);
+        b.putInt(28, FLAG_PROCESS);
+        b.putInt(32, pid());
+        b.putInt(36, cluster);
+        if (tocs > 0) {
+            toc(b, 0, TOC_INDOMS, indoms, indomsAt);
+            toc(b, 1, TOC_INSTANCES, instances, instancesAt);
+            toc(b, 2, TOC_METRICS, metricCount, metricsAt);
+            toc(b, 3, TOC_VALUES, values, valuesAt);
+            toc(b, 4, TOC_STRINGS, strings, stringsAt);
+        }
+
+        long string = stringsAt;
+        long indom = indomsAt;
+        long instance = instancesAt;
+        long metric = metricsAt;
+        long value = valuesAt;
+        for (int serial = METHODS; serial <= CLASSES; serial++) {
+            int count = indomCounts[serial - 1];
+            if (count == 0) {
+                continue;
+            }
+            String what = serial == METHODS ? "methods" : "classes";
+            String naming = serial == METHODS ? "fully qualified class and method name" : "fully qualified class name";
+            b.putInt((int) indom, serial);
+            b.putInt((int) indom + 4, count);
+            b.putLong((int) indom + 8, instance);
+            b.putLong((int) indom + 16, string(b, string, "Instrumented " + what));
+            b.putLong((int) indom + 24, string(b, string + STRING_SIZE, "Instrumented " + what + ", named by " + naming));
+            string += 2 * STRING_SIZE;
+
+            long firstInstance = instance;
+            for (int i = 0; i < count; i++) {
+                String name = serial == METHODS ? methods[i].name : classes[i].name;
+                int id = serial == METHODS ? methodIds[i] : classIds[i];
+                if (name.getBytes(StandardCharsets.UTF_8).length >= STRING_SIZE) {
+                    // Keep truncated names unique, PCP matches them up to the first space
+                    name = id + " " + name;
+                }
+                b.putLong((int) instance, indom);
+                b.putInt((int) instance + 12, id);
+                b.putLong((int) instance + 16, string(b, string, name));
+                string += STRING_SIZE;
+                instance += INSTANCE_SIZE;
+            }
+
+            indom += INDOM_SIZE;
+
+            int from = serial == METHODS ? 0 : methodMetrics;
+            int to = serial == METHODS ? methodMetrics : metrics.length;
+            long firstMetric = metric;
+            for (int j = from; j < to; j++) {
+                Metric m = metrics[j];
+                b.putLong((int) metric, string(b, string, m.name));
+                b.putInt((int) metric + 8, j);
+                b.putInt((int) metric + 12, m.type);
+                b.putInt((int) metric + 16, m.semantics);
+                b.putInt((int) metric + 20, m.units);
+                b.putInt((int) metric + 24, serial);
+                long help = string(b, string + STRING_SIZE, m.help);
+                b.putLong((int) metric + 32, help);
+                b.putLong((int) metric + 40, help);
+                string += 2 * STRING_SIZE;
+                metric += METRIC_SIZE;
+            }
+            if (serial == METHODS) {
+                methodValues = (int) value;
+            } else {
+                classValues = (int) value;
+            }
+            // Values of an instance are adjacent, in the order of the metrics
+            for (int i = 0; i < count; i++) {
+                for (int j = 0; j < to - from; j++) {
+                    b.putLong((int) value + 16, firstMetric + j * METRIC_SIZE);
+                    b.putLong((int) value + 24, firstInstance + i * INSTANCE_SIZE);
+                    value += VALUE_SIZE;
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        buffer = b;
+        this.methods = methods;
+        this.classes = classes;
+    }
+
+    // IDs of the declared metrics in the store
+    private static <T> int[] ids(T[] declared, T[] all) {
+        int[] ids = new int[declared.length];
+        for (int i = 0, id = 0; i < declared.length; i++, id++) {
+            while (all[id] != declared[i]) {
+                id++;
+            }
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    private static void toc(MappedByteBuffer b, int index, int type, int count, long offset) {
+        int pos = HEADER_SIZE + index * TOC_SIZE;
+        b.putInt(pos, type);
+        b.putInt(pos + 4, count);
+        b.putLong(pos + 8, offset);
+    }
+
+    // Writes a string truncated to fit, returning its offset
+    private static long string(MappedByteBuffer b, long offset, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, STRING_SIZE - 1);
+        for (int i = 0; i < length; i++) {
+            b.put((int) offset + i, bytes[i]);
+        }
+        return offset;
+    }
+
+    private static int pid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.indexOf('@')));
+        } catch (RuntimeException ex) {
+            return 0;
+        }
+    }
+
+    synchronized void start() {
+        if (publisher == null) {
+            publisher = new Thread(this, "ProfTool MMV publisher");
+            publisher.setDaemon(true);
+            publisher.start();
+        }
+    }
+
+    synchronized void stop() {
+        Thread t = publisher;
+        publisher = null;
+        LockSupport.unpark(t);
+        if (buffer != null) {
+            publish();
+        }
+    }
+}
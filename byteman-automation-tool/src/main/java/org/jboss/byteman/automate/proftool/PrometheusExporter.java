@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Serves the metrics for Prometheus to scrape over HTTP, rendered
+ * straight from the metric store in the OpenMetrics text format or, to
+ * clients not asking for it, in the older Prometheus text format. The
+ * counters are the cumulative ones, never affected by JMX resets, as
+ * Prometheus expects. Execution times and lifetimes are reported in
+ * seconds as histograms with fixed buckets, execution times only with
+ * count and sum unless their percentiles are recorded.
+ *
+ * Requests are served by one daemon thread so that scrapes never
+ * compete with the application for more than one CPU.
+ */
+final class PrometheusExporter {
+    static final String PATH = "/metrics";
+    private static final String OPENMETRICS_TYPE = "application/openmetrics-text";
+    private static final String OPENMETRICS_CONTENT = OPENMETRICS_TYPE + "; version=1.0.0; charset=utf-8";
+    private static final String TEXT_CONTENT = "text/plain; version=0.0.4; charset=utf-8";
+    // Histogram bucket upper bounds in seconds
+    private static final double[] BUCKETS = { 1e-6, 1e-5, 1e-4, 2.5e-4, 5e-4, 1e-3, 2.5e-3, 5e-3, 0.01, 0.025, 0.05, 0.1,
+        0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+    private final MetricStore store;
+    private final Clock clock;
+    private final boolean execHistograms;
+    private final InetSocketAddress address;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    PrometheusExporter(MetricStore store, Clock clock, boolean execHistograms, String hostPort) {
+        this.store = store;
+        this.clock = clock;
+        this.execHistograms = execHistograms;
+        this.address = parseAddress(hostPort);
+    }
+
+    // [address:]port, bound to the loopback address unless given
+    static InetSocketAddress parseAddress(String hostPort) {
+        int i = hostPort.lastIndexOf(':');
+        String host = i >= 0 ? hostPort.substring(0, i) : "127.0.0.1";
+        try {
+            int port = Integer.parseInt(hostPort.substring(i + 1));
+            return new InetSocketAddress(host, port);
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Malformed address, expected [address:]port: " + hostPort);
+        }
+    }
+
+    synchronized void start() throws IOException {
+        if (server == null) {
+            server = HttpServer.create(address, 0);
+            server.createContext(PATH, this::handle);
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "ProfTool Prometheus exporter");
+                t.setDaemon(true);
+                return t;
+            });
+            server.setExecutor(executor);
+            server.start();
+        }
+    }
+
+    synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdown();
+            server = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            List<String> accept = exchange.getRequestHeaders().get("Accept");
+            boolean openMetrics = accept != null && String.join(",", accept).contains(OPENMETRICS_TYPE);
+            byte[] body = render(openMetrics).getBytes(StandardCharsets.UTF_8);
+            List<String> encodings = exchange.getRequestHeaders().get("Accept-Encoding");
+            if (encodings != null && String.join(",", encodings).contains("gzip")) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+                    gzip.write(body);
+                }
+                body = bytes.toByteArray();
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            exchange.getResponseHeaders().set("Content-Type", openMetrics ? OPENMETRICS_CONTENT : TEXT_CONTENT);
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    String render(boolean openMetrics) {
+        StringBuilder sb = new StringBuilder(4096);
+        MethodMetrics[] methods = store.methods();
+        ClassMetrics[] classes = store.classes();
+        double unit = clock.unitSeconds();
+        long[] counts = new long[Histogram.BUCKETS];
+
+        family(sb, openMetrics, "proftool_method_calls", "counter", "Calls of the method");
+        for (MethodMetrics m: methods) {
+            if (m != null && m.hasSeen(MethodMetrics.CALLS)) {
+                sample(sb, "proftool_method_calls_total", "method", m.name, null, m.calls.sum());
+            }
+        }
+        family(sb, openMetrics, "proftool_method_exceptions", "counter", "Exits of the method via exceptions");
+        for (MethodMetrics m: methods) {
+            if (m != null && m.hasSeen(MethodMetrics.EXIT_EXCEPT)) {
+                sample(sb, "proftool_method_exceptions_total", "method", m.name, null, m.exitExcept.sum());
+            }
+        }
+        family(sb, openMetrics, "proftool_method_inflight", "gauge", "Calls of the method in flight");
+        for (MethodMetrics m: methods) {
+            if (m != null && m.hasSeen(MethodMetrics.STARTS)) {
+                sample(sb, "proftool_method_inflight", "method", m.name, null, m.inFlight.value());
+            }
+        }
+        family(sb, openMetrics, "proftool_method_exectime_seconds", execHistograms ? "histogram" : "summary", "Execution time of the method");
+        for (MethodMetrics m: methods) {
+            if (m != null && m.hasSeen(MethodMetrics.EXEC_TIMES)) {
+                distribution(sb, "proftool_method_exectime_seconds", "method", m.name, m.execTimes.snapshot(),
+                    execHistograms ? m.execTimesHist.counts(counts) : null, unit);
+            }
+        }
+
+        family(sb, openMetrics, "proftool_class_instances", "counter", "Instances of the class created");
+        for (ClassMetrics c: classes) {
+            if (c != null && c.hasSeen(ClassMetrics.INSTANCES)) {
+                sample(sb, "proftool_class_instances_total", "class", c.name, null, c.instances.sum());
+            }
+        }
+        family(sb, openMetrics, "proftool_class_instances_live", "gauge", "Instances of the class not yet garbage collected");
+        for (ClassMetrics c: classes) {
+            if (c != null && c.hasSeen(ClassMetrics.INSTANCES)) {
+                sample(sb, "proftool_class_instances_live", "class", c.name, null, c.liveInstances());
+            }
+        }
+        family(sb, openMetrics, "proftool_class_lifetime_seconds", "histogram", "Lifetime of instances of the class");
+        for (ClassMetrics c: classes) {
+            if (c != null && c.hasSeen(ClassMetrics.LIFETIMES)) {
+                distribution(sb, "proftool_class_lifetime_seconds", "class", c.name, c.lifetimes.snapshot(),
+                    c.lifetimesHist.counts(counts), unit);
+            }
+        }
+        if (openMetrics) {
+            sb.append("# EOF\n");
+        }
+        return sb.toString();
+    }
+
+    // Counter families are named without _total in OpenMetrics only
+    private static void family(StringBuilder sb, boolean openMetrics, String name, String type, String help) {
+        if (!openMetrics && type.equals("counter")) {
+            name += "_total";
+        }
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String label, String value, String le, Object sample) {
+        sb.append(name).append('{').append(label).append("=\"");
+        escape(sb, value);
+        sb.append('"');
+        if (le != null) {
+            sb.append(",le=\"").append(le).append('"');
+        }
+        sb.append("} ").append(sample).append('\n');
+    }
+
+    /*
+     * Count and sum of a distribution and, given histogram counts, its
+     * cumulative buckets. A histogram bucket counts towards a bound when
+     * all of its values are within the bound, so with the histogram
+     * precision a bucket may undercount by a few percent of the bound.
+     */
+    private static void distribution(StringBuilder sb, String name, String label, String value, StatsCell.Snapshot snap, long[] counts, double unit) {
+        if (counts != null) {
+            long cumulative = 0;
+            int i = 0;
+            for (double bound: BUCKETS) {
+                for (; i < counts.length && Histogram.highestValue(i) * unit <= bound; i++) {
+                    cumulative += counts[i];
+                }
+                sample(sb, name + "_bucket", label, value, Double.toString(bound), cumulative);
+            }
+            for (; i < counts.length; i++) {
+                cumulative += counts[i];
+            }
+            sample(sb, name + "_bucket", label, value, "+Inf", cumulative);
+            // Count must equal the +Inf bucket
+            sample(sb, name + "_count", label, value, null, cumulative);
+        } else {
+            sample(sb, name + "_count", label, value, null, snap.count);
+        }
+        sample(sb, name + "_sum", label, value, null, snap.sum * unit);
+    }
+
+    private static void escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+}
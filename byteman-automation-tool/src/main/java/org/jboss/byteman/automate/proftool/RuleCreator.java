@@ -34,10 +34,13 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import org.jboss.byteman.contrib.dtest.RuleConstructor;
@@ -57,14 +60,41 @@ public class RuleCreator {
     private static final String OPT_REGISTER_METHOD    = "--register-method";
     private static final String OPT_REGISTER_ACTION    = "--register-action";
     private static final String OPT_REGISTER_OBJECT    = "--register-object";
+    private static final String OPT_CLOCK              = "--clock";
+    private static final String OPT_CLOCK_TICK         = "--clock-tick";
+    private static final String OPT_SAMPLE_RATE        = "--sample-rate";
+    private static final String OPT_BUDGET_EVENTS      = "--budget-events";
+    private static final String OPT_BUDGET_NANOS       = "--budget-nanos";
+    private static final String OPT_BUFFERED           = "--buffered";
+    private static final String OPT_LAZY_ATTRIBUTES    = "--lazy-attributes";
+    private static final String OPT_DRAIN_INTERVAL     = "--drain-interval";
+    private static final String OPT_TOP_K              = "--top-k";
+    private static final String OPT_SLOWEST            = "--slowest";
+    private static final String OPT_WINDOW_MINUTES     = "--window-minutes";
+    private static final String OPT_SLOWEST_STACKS     = "--slowest-stacks";
+    private static final String OPT_HTTP               = "--http";
+    private static final String OPT_STATSD             = "--statsd";
+    private static final String OPT_STATSD_INTERVAL    = "--statsd-interval";
+    private static final String OPT_STATSD_MTU         = "--statsd-mtu";
+    private static final String OPT_MMV                = "--mmv";
+    private static final String OPT_MMV_INTERVAL       = "--mmv-interval";
+    private static final String OPT_THRESHOLD          = "--threshold";
+    private static final String OPT_MBEANS_PER         = "--mbeans-per";
+    private static final String OPT_TRACE_FILE         = "--trace-file";
+    private static final String OPT_TRACE_SIZE         = "--trace-size";
     private static final String OPT_INSTANCE_COUNTS    = "--instance-counts";
     private static final String OPT_INST_LIFETIMES_MIN = "--inst-lifetimes-min";
     private static final String OPT_INST_LIFETIMES_AVG = "--inst-lifetimes-avg";
     private static final String OPT_INST_LIFETIMES_MAX = "--inst-lifetimes-max";
+    private static final String OPT_INST_LIFETIMES_PCT = "--inst-lifetimes-pct";
     private static final String OPT_CALL_COUNTS        = "--call-counts";
     private static final String OPT_CALL_EXECTIMES_MIN = "--call-exectimes-min";
     private static final String OPT_CALL_EXECTIMES_AVG = "--call-exectimes-avg";
     private static final String OPT_CALL_EXECTIMES_MAX = "--call-exectimes-max";
+    private static final String OPT_CALL_EXECTIMES_PCT = "--call-exectimes-pct";
+    private static final String OPT_CALL_TREE          = "--call-tree";
+    private static final String OPT_CALL_TRACE         = "--call-trace";
+    private static final String OPT_CALL_TRACE_ARGS    = "--call-trace-args";
     private static final String OPT_CALL_EXIT_EXCEPT   = "--call-exit-except";
 
     // Defaults
@@ -75,6 +105,26 @@ public class RuleCreator {
     private static final String DFL_REGISTER_METHOD    = "main";
     private static final String DFL_REGISTER_ACTION    = "registerMBean";
     private static final String DFL_REGISTER_OBJECT    = "byteman:type=Statistics";
+    private static final String DFL_CLOCK              = "millis";
+    private static final String DFL_CLOCK_TICK         = "100";
+    private static final String DFL_DRAIN_INTERVAL     = "100";
+    private static final String DFL_TOP_K              = "10";
+    private static final String DFL_STATSD_INTERVAL    = "10";
+    private static final String DFL_STATSD_MTU         = "1432";
+    private static final String DFL_MMV_INTERVAL       = "1000";
+    private static final String DFL_TRACE_FILE         = "proftool.trace";
+    private static final String DFL_TRACE_SIZE         = "64";
+    private static final int DFL_SAMPLE_RATE           = 1;
+
+    // Per-target options in input file
+    private static final String TGT_SAMPLE_RATE        = "sample";
+    private static final String TGT_DIMENSION          = "dim";
+    private static final String TGT_ARGS               = "args";
+    private static final int MAX_EXEMPLAR_ARGS         = 3;
+
+    // Names declared per helper call, keeps compiled rule constants small
+    private static final int DECLARE_BATCH             = 500;
+    private static final String DECLARE_SEP            = "|";
 
     // Parameters
     private String inputFile                           = DFL_INPUT_FILE;
@@ -84,15 +134,42 @@ public class RuleCreator {
     private String registerMethod                      = DFL_REGISTER_METHOD;
     private String registerAction                      = DFL_REGISTER_ACTION;
     private String registerObject                      = DFL_REGISTER_OBJECT;
+    private String clock                               = DFL_CLOCK;
+    private String clockTick                           = DFL_CLOCK_TICK;
+    private int sampleRate                             = DFL_SAMPLE_RATE;
+    private String budgetEvents                        = null;
+    private String budgetNanos                         = null;
+    private boolean buffered                           = false;
+    private boolean lazyAttributes                     = false;
+    private String drainInterval                       = DFL_DRAIN_INTERVAL;
+    private String topK                                = DFL_TOP_K;
+    private String slowest                             = null;
+    private String windowMinutes                       = null;
+    private String http                                = null;
+    private String statsd                              = null;
+    private String statsdInterval                      = DFL_STATSD_INTERVAL;
+    private String statsdMtu                           = DFL_STATSD_MTU;
+    private String mmv                                 = null;
+    private String mmvInterval                         = DFL_MMV_INTERVAL;
+    private final List<String> thresholds              = new ArrayList<>();
+    private String mbeansPer                           = null;
+    private boolean slowestStacks                      = false;
+    private String traceFile                           = DFL_TRACE_FILE;
+    private String traceSize                           = DFL_TRACE_SIZE;
     private boolean instanceCounts                     = false;
     private boolean instanceLifetimesMin               = false;
     private boolean instanceLifetimesAvg               = false;
     private boolean instanceLifetimesMax               = false;
+    private boolean instanceLifetimesPct               = false;
     private boolean callCounts                         = false;
     private boolean callExecTimesMin                   = false;
     private boolean callExecTimesAvg                   = false;
     private boolean callExecTimesMax                   = false;
+    private boolean callExecTimesPct                   = false;
     private boolean callExitExcept                     = false;
+    private boolean callTree                           = false;
+    private boolean callTrace                          = false;
+    private boolean callTraceArgs                      = false;
 
     public RuleCreator(String[] args) {
         parseArguments(args);
@@ -108,21 +185,38 @@ public class RuleCreator {
         if (argsList.contains(OPT_INST_LIFETIMES_MIN))    instanceLifetimesMin = true;
         if (argsList.contains(OPT_INST_LIFETIMES_AVG))    instanceLifetimesAvg = true;
         if (argsList.contains(OPT_INST_LIFETIMES_MAX))    instanceLifetimesMax = true;
+        if (argsList.contains(OPT_INST_LIFETIMES_PCT))    instanceLifetimesPct = true;
         if (instanceLifetimesMin || instanceLifetimesMax) instanceLifetimesAvg = true;
+        if (instanceLifetimesPct)                         instanceLifetimesAvg = true;
         if (argsList.contains(OPT_CALL_COUNTS))           callCounts = true;
         if (argsList.contains(OPT_CALL_EXECTIMES_MIN))    callExecTimesMin = true;
         if (argsList.contains(OPT_CALL_EXECTIMES_AVG))    callExecTimesAvg = true;
         if (argsList.contains(OPT_CALL_EXECTIMES_MAX))    callExecTimesMax = true;
+        if (argsList.contains(OPT_CALL_EXECTIMES_PCT))    callExecTimesPct = true;
         if (callExecTimesMin || callExecTimesMax)         callExecTimesAvg = true;
+        if (argsList.contains(OPT_CALL_TREE))             callTree = true;
+        if (callExecTimesPct || callTree)                 callExecTimesAvg = true;
+        if (argsList.contains(OPT_SLOWEST))               callExecTimesAvg = true;
+        if (argsList.contains(OPT_SLOWEST_STACKS))        slowestStacks = true;
         if (argsList.contains(OPT_CALL_EXIT_EXCEPT))      callExitExcept = true;
         if (callExecTimesAvg)                             callExitExcept = true;
+        if (argsList.contains(OPT_CALL_TRACE))            callTrace = true;
+        if (argsList.contains(OPT_CALL_TRACE_ARGS))       callTraceArgs = true;
+        if (callTraceArgs)                                callTrace = true;
+        if (argsList.contains(OPT_BUFFERED))              buffered = true;
+        if (argsList.contains(OPT_LAZY_ATTRIBUTES))       lazyAttributes = true;
         for (Iterator<String> iter = argsList.iterator(); iter.hasNext(); ) {
             String arg = iter.next();
             if (arg.equals(OPT_INSTANCE_COUNTS) || arg.equals(OPT_INST_LIFETIMES_AVG) ||
                 arg.equals(OPT_INST_LIFETIMES_MIN) || arg.equals(OPT_INST_LIFETIMES_MAX) ||
+                arg.equals(OPT_INST_LIFETIMES_PCT) ||
                 arg.equals(OPT_CALL_COUNTS) || arg.equals(OPT_CALL_EXECTIMES_AVG) ||
                 arg.equals(OPT_CALL_EXECTIMES_MIN) || arg.equals(OPT_CALL_EXECTIMES_MAX) ||
-                arg.equals(OPT_CALL_EXIT_EXCEPT)) {
+                arg.equals(OPT_CALL_EXECTIMES_PCT) ||
+                arg.equals(OPT_CALL_EXIT_EXCEPT) ||
+                arg.equals(OPT_CALL_TREE) || arg.equals(OPT_SLOWEST_STACKS) ||
+                arg.equals(OPT_CALL_TRACE) || arg.equals(OPT_CALL_TRACE_ARGS) ||
+                arg.equals(OPT_BUFFERED) || arg.equals(OPT_LAZY_ATTRIBUTES)) {
                 continue;
             }
             try {
@@ -140,6 +234,97 @@ public class RuleCreator {
                     registerAction = iter.next();
                 } else if (arg.equals(OPT_REGISTER_OBJECT)) {
                     registerObject = iter.next();
+                } else if (arg.equals(OPT_CLOCK)) {
+                    clock = iter.next();
+                    if (!Arrays.asList("millis", "nanos", "coarse").contains(clock)) {
+                        throw new IllegalArgumentException("Unsupported clock: " + clock);
+                    }
+                } else if (arg.equals(OPT_CLOCK_TICK)) {
+                    clockTick = iter.next();
+                    if (!clockTick.matches("[1-9][0-9]*")) {
+                        throw new IllegalArgumentException("Clock tick must be a positive integer: " + clockTick);
+                    }
+                } else if (arg.equals(OPT_SAMPLE_RATE)) {
+                    sampleRate = parseSampleRate(iter.next());
+                } else if (arg.equals(OPT_BUDGET_EVENTS)) {
+                    budgetEvents = iter.next();
+                    if (!budgetEvents.matches("[1-9][0-9]*")) {
+                        throw new IllegalArgumentException("Event budget must be a positive integer: " + budgetEvents);
+                    }
+                } else if (arg.equals(OPT_DRAIN_INTERVAL)) {
+                    drainInterval = iter.next();
+                    if (!drainInterval.matches("[1-9][0-9]*")) {
+                        throw new IllegalArgumentException("Drain interval must be a positive integer: " + drainInterval);
+                    }
+                } else if (arg.equals(OPT_TOP_K)) {
+                    topK = iter.next();
+                    if (!topK.matches("[1-9][0-9]*")) {
+                        throw new IllegalArgumentException("Top-K must be a positive integer: " + topK);
+                    }
+                } else if (arg.equals(OPT_SLOWEST)) {
+                    slowest = iter.next();
+                    if (!slowest.matches("[1-9][0-9]*")) {
+                        throw new IllegalArgumentException("Number of slowest calls must be a positive integer: " + slowest);
+                    }
+                } else if (arg.equals(OPT_WINDOW_MINUTES)) {
+                    windowMinutes = iter.next();
+                    if (!windowMinutes.matches("[1-9][0-9]*")) {
+                        throw new IllegalArgumentException("Window must be a positive integer: " + windowMinutes);
+                    }
+                } else if (arg.equals(OPT_HTTP)) {
+                    http = iter.next();
+                    if (!http.matches("([^;]+:)?[0-9]+")) {
+                        throw new IllegalArgumentException("HTTP endpoint must be [address:]port: " + http);
+                    }
+                } else if (arg.equals(OPT_STATSD)) {
+                    statsd = iter.next();
+                    if (!statsd.matches("([^;]+:)?[0-9]+")) {
+                        throw new IllegalArgumentException("StatsD address must be [address:]port: " + statsd);
+                    }
+                } else if (arg.equals(OPT_STATSD_INTERVAL)) {
+                    statsdInterval = iter.next();
+                    if (!statsdInterval.matches("[1-9][0-9]*")) {
+                        throw new IllegalArgumentException("StatsD interval must be a positive integer: " + statsdInterval);
+                    }
+                } else if (arg.equals(OPT_STATSD_MTU)) {
+                    statsdMtu = iter.next();
+                    if (!statsdMtu.matches("[1-9][0-9]*") || Integer.parseInt(statsdMtu) < 64) {
+                        throw new IllegalArgumentException("StatsD MTU must be an integer of at least 64: " + statsdMtu);
+                    }
+                } else if (arg.equals(OPT_MMV)) {
+                    mmv = iter.next();
+                    if (mmv.contains(";")) {
+                        throw new IllegalArgumentException("MMV file name must not contain ';': " + mmv);
+                    }
+                } else if (arg.equals(OPT_MMV_INTERVAL)) {
+                    mmvInterval = iter.next();
+                    if (!mmvInterval.matches("[1-9][0-9]*")) {
+                        throw new IllegalArgumentException("MMV interval must be a positive integer: " + mmvInterval);
+                    }
+                } else if (arg.equals(OPT_THRESHOLD)) {
+                    String threshold = iter.next();
+                    ThresholdMonitor.Threshold.parse(threshold);
+                    thresholds.add(threshold);
+                } else if (arg.equals(OPT_MBEANS_PER)) {
+                    mbeansPer = iter.next();
+                    if (!mbeansPer.equals("class") && !mbeansPer.equals("method")) {
+                        throw new IllegalArgumentException("MBeans must be registered per class or method: " + mbeansPer);
+                    }
+                } else if (arg.equals(OPT_TRACE_FILE)) {
+                    traceFile = iter.next();
+                    if (traceFile.contains(";")) {
+                        throw new IllegalArgumentException("Trace file name must not contain ';': " + traceFile);
+                    }
+                } else if (arg.equals(OPT_TRACE_SIZE)) {
+                    traceSize = iter.next();
+                    if (!traceSize.matches("[1-9][0-9]*")) {
+                        throw new IllegalArgumentException("Trace size must be a positive integer: " + traceSize);
+                    }
+                } else if (arg.equals(OPT_BUDGET_NANOS)) {
+                    budgetNanos = iter.next();
+                    if (!budgetNanos.matches("[1-9][0-9]*")) {
+                        throw new IllegalArgumentException("Nanosecond budget must be a positive integer: " + budgetNanos);
+                    }
                 } else {
                     throw new IllegalArgumentException("Unrecognized option: " + arg);
                 }
@@ -149,7 +334,27 @@ public class RuleCreator {
         }
     }
 
-    private RuleConstructor createRegisterMBeanRule(String clazz, String method, String action, String objectName) {
+    private static int parseSampleRate(String rate) {
+        if (!rate.matches("[1-9][0-9]*")) {
+            throw new IllegalArgumentException("Sample rate must be a positive integer: " + rate);
+        }
+        return Integer.parseInt(rate);
+    }
+
+    private RuleConstructor createRegisterMBeanRule(String clazz, String method, String action, String objectName, List<String> classNames, List<String> methodNames) {
+        List<String> actions = new ArrayList<>();
+        actions.add(action + "(\"" + objectName + "\", " +
+            String.valueOf(instanceLifetimesMin) + ", " +
+            String.valueOf(instanceLifetimesMax) + ", " +
+            String.valueOf(instanceLifetimesPct) + ", " +
+            String.valueOf(callExecTimesMin) + ", " +
+            String.valueOf(callExecTimesMax) + ", " +
+            String.valueOf(callExecTimesPct) + ", " +
+            String.valueOf(callExitExcept) + ", \"" +
+            createHelperOptions() + "\")");
+        actions.addAll(createDeclareActions("declareClasses", classNames));
+        actions.addAll(createDeclareActions("declareMethods", methodNames));
+        actions.set(actions.size() - 1, actions.get(actions.size() - 1) + ";");
         return RuleConstructor.createRule("Register dynamic MBean")
             .onClass(clazz)
             .inMethod(method)
@@ -157,22 +362,122 @@ public class RuleCreator {
             .atEntry()
             .compile()
             .ifTrue()
-            .doAction(action + "(\"" + objectName + "\", " +
-                String.valueOf(instanceLifetimesMin) + ", " +
-                String.valueOf(instanceLifetimesMax) + ", " +
-                String.valueOf(callExecTimesMin) + ", " +
-                String.valueOf(callExecTimesMax) + ", " +
-                String.valueOf(callExitExcept) + ");");
+            .doAction(actions.toArray(new String[actions.size()]));
+    }
+
+    // Helper settings other than metric switches, as key=value;key=value
+    private String createHelperOptions() {
+        List<String> options = new ArrayList<>();
+        options.add("clock=" + clock);
+        if (clock.equals("coarse")) {
+            options.add("clockTick=" + clockTick);
+        }
+        if (budgetEvents != null) {
+            options.add("budgetEvents=" + budgetEvents);
+        }
+        if (budgetNanos != null) {
+            options.add("budgetNanos=" + budgetNanos);
+        }
+        if ((budgetEvents != null || budgetNanos != null) && callCounts && callExecTimesAvg) {
+            // Not to be counted again by the timing rules of count-only methods
+            options.add("callCounts=true");
+        }
+        if (!topK.equals(DFL_TOP_K)) {
+            options.add("topK=" + topK);
+        }
+        if (slowest != null) {
+            options.add("slowest=" + slowest);
+            if (slowestStacks) {
+                options.add("slowestStacks=true");
+            }
+        }
+        if (windowMinutes != null) {
+            options.add("window=" + windowMinutes);
+        }
+        if (http != null) {
+            options.add("http=" + http);
+        }
+        if (statsd != null) {
+            options.add("statsd=" + statsd);
+            if (!statsdInterval.equals(DFL_STATSD_INTERVAL)) {
+                options.add("statsdInterval=" + statsdInterval);
+            }
+            if (!statsdMtu.equals(DFL_STATSD_MTU)) {
+                options.add("statsdMtu=" + statsdMtu);
+            }
+        }
+        if (mmv != null) {
+            options.add("mmv=" + mmv);
+            if (!mmvInterval.equals(DFL_MMV_INTERVAL)) {
+                options.add("mmvInterval=" + mmvInterval);
+            }
+        }
+        if (!thresholds.isEmpty()) {
+            options.add("thresholds=" + String.join(",", thresholds));
+        }
+        if (mbeansPer != null) {
+            options.add("mbeans=" + mbeansPer);
+        }
+        if (callTree) {
+            options.add("calltree=true");
+        }
+        if (callTrace) {
+            options.add("traceFile=" + traceFile);
+            options.add("traceSize=" + traceSize);
+        }
+        if (!lazyAttributes) {
+            // Kinds of metrics recorded, for the helper to list them for all targets
+            List<String> kinds = new ArrayList<>();
+            if (instanceCounts || instanceLifetimesAvg) kinds.add("instances");
+            if (instanceLifetimesAvg)                   kinds.add("lifetimes");
+            if (callCounts)                             kinds.add("calls");
+            if (callExecTimesAvg)                       kinds.add("exectimes");
+            if (callExitExcept)                         kinds.add("exceptions");
+            if (!kinds.isEmpty()) {
+                options.add("declare=" + String.join(",", kinds));
+            }
+        }
+        if (buffered) {
+            options.add("buffered=true");
+            options.add("drainInterval=" + drainInterval);
+        }
+        return String.join(";", options);
+    }
+
+    private List<String> createDeclareActions(String action, List<String> names) {
+        List<String> actions = new ArrayList<>();
+        for (int i = 0; i < names.size(); i += DECLARE_BATCH) {
+            List<String> batch = names.subList(i, Math.min(i + DECLARE_BATCH, names.size()));
+            actions.add(action + "(" + i + ", \"" + String.join(DECLARE_SEP, batch) + "\")");
+        }
+        return actions;
+    }
+
+    // Actions ending with a semicolon, as one action of a rule
+    private static String joinActions(String... actions) {
+        return String.join("\n", actions);
+    }
+
+    // Rule condition firing for 1-in-rate calls
+    private String createSampleCondition(int rate) {
+        if (rate == 1) {
+            return "true";
+        }
+        return "java.util.concurrent.ThreadLocalRandom.current().nextInt(" + rate + ") == 0";
     }
 
     private RuleConstructor createEntryRule(String ruleName, String clazz, String method, String action) {
+        return createEntryRule(ruleName, clazz, method, "true", action);
+    }
+
+    private RuleConstructor createEntryRule(String ruleName, String clazz, String method, String condition, String action) {
         return RuleConstructor.createRule(ruleName)
             .onClass(clazz)
             .inMethod(method)
             .helper(helperClass)
             .atEntry()
             .compile()
-            .ifTrue()
+            .ifCondition(condition)
             .doAction(action);
     }
 
@@ -188,80 +493,135 @@ public class RuleCreator {
     }
 
     private RuleConstructor createExceptRule(String ruleName, String clazz, String method, String action) {
+        return createExceptRule(ruleName, clazz, method, "true", action);
+    }
+
+    private RuleConstructor createExceptRule(String ruleName, String clazz, String method, String condition, String action) {
         return RuleConstructor.createRule(ruleName)
             .onClass(clazz)
             .inMethod(method)
             .helper(helperClass)
             .atExceptionExit()
             .compile()
-            .ifTrue()
+            .ifCondition(condition)
             .doAction(action);
     }
 
+    /*
+     * Parses a monitoring target from input, class#method optionally
+     * followed by whitespace separated key=value target options.
+     */
+    private Target parseTarget(String line) {
+        String[] fields = line.split("\\s+");
+        int i = fields[0].indexOf("#");
+        if (i <= 0 || i == fields[0].length() - 1) {
+            throw new IllegalArgumentException("Malformed target: " + line);
+        }
+        Target target = new Target(fields[0], fields[0].substring(0, i), fields[0].substring(i + 1));
+        target.sampleRate = sampleRate;
+        for (int f = 1; f < fields.length; f++) {
+            String[] kv = fields[f].split("=", 2);
+            if (kv.length == 2 && kv[0].equals(TGT_SAMPLE_RATE)) {
+                target.sampleRate = parseSampleRate(kv[1]);
+            } else if (kv.length == 2 && kv[0].equals(TGT_DIMENSION) && !kv[1].isEmpty()) {
+                target.dim = kv[1];
+            } else if (kv.length == 2 && kv[0].equals(TGT_ARGS) && !kv[1].isEmpty()) {
+                target.args = kv[1].split(",");
+                if (target.args.length > MAX_EXEMPLAR_ARGS) {
+                    throw new IllegalArgumentException("At most " + MAX_EXEMPLAR_ARGS + " exemplar arguments supported: " + line);
+                }
+            } else {
+                throw new IllegalArgumentException("Unrecognized target option: " + fields[f]);
+            }
+        }
+        return target;
+    }
+
     public StringBuilder createRules() throws FileNotFoundException, IOException {
         StringBuilder ruleScriptBuilder = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new FileReader(inputFile))) {
-            ruleScriptBuilder.append(createRegisterMBeanRule(registerClass, registerMethod, registerAction, registerObject).build());
 
-            String prevClazz = null;
-            HashSet<String> lines = new HashSet<>();
+        // Targets are identified in rules by their position in input
+        Map<String, Target> targets = new LinkedHashMap<>();
+        Map<String, Integer> classIds = new LinkedHashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(inputFile))) {
             for (String line; (line = br.readLine()) != null; ) {
                 line = line.trim();
-                if (line.isEmpty() || !lines.add(line)) {
+                if (line.isEmpty()) {
                     continue;
                 }
-                String clazz = line.substring(0, line.indexOf("#"));
-                String method = line.substring(line.indexOf("#") + 1);
-
-                if (prevClazz == null || !prevClazz.equals(clazz)) {
-                    if (instanceCounts) {
-                        String ruleName = "Increment instance count: " + clazz;
-                        String action = "incrementInstanceCount($CLASS);";
-                        ruleScriptBuilder.append(createExitRule(ruleName, clazz, "<init>", action).build());
-                    }
-                    if (instanceLifetimesAvg) {
-                        String ruleName = "Record instance creation time: " + clazz;
-                        String action = ("recordInstanceCreationTime($CLASS, $0);");
-                        ruleScriptBuilder.append(createEntryRule(ruleName, clazz, "<init>", action).build());
-
-                        ruleName = "Record instance lifetime, no exceptions: " + clazz;
-                        action = "recordInstanceLifetime($CLASS, $0);";
-                        ruleScriptBuilder.append(createExitRule(ruleName, clazz, "run", action).build());
-
-                        ruleName = "Record instance lifetime, if exceptions: " + clazz;
-                        action = "recordInstanceLifetime($CLASS, $0);";
-                        ruleScriptBuilder.append(createExceptRule(ruleName, clazz, "run", action).build());
-                    } else {
-                        String ruleName = "Decrement live instance count, no exceptions: " + clazz;
-                        String action = ("decrementLiveInstanceCount($CLASS);");
-                        ruleScriptBuilder.append(createExitRule(ruleName, clazz, "run", action).build());
-
-                        ruleName = "Decrement live instance count, if exceptions: " + clazz;
-                        action = ("decrementLiveInstanceCount($CLASS);");
-                        ruleScriptBuilder.append(createExceptRule(ruleName, clazz, "run", action).build());
-                    }
+                Target target = parseTarget(line);
+                if (targets.putIfAbsent(target.name, target) == null) {
+                    target.id = targets.size() - 1;
+                    classIds.putIfAbsent(target.clazz, classIds.size());
                 }
-                prevClazz = clazz;
+            }
+        }
+        ruleScriptBuilder.append(createRegisterMBeanRule(registerClass, registerMethod, registerAction, registerObject,
+            new ArrayList<>(classIds.keySet()), new ArrayList<>(targets.keySet())).build());
+
+        HashSet<String> seenClasses = new HashSet<>();
+        for (Target target: targets.values()) {
+            String clazz = target.clazz;
+            String method = target.method;
+            int classId = classIds.get(clazz);
+            int methodId = target.id;
+            int rate = target.sampleRate;
+            // Dimension values go with timing if enabled, else with counts
+            String dimArg = target.dim != null ? ", " + target.dim : "";
+
+            if (seenClasses.add(clazz) && (instanceCounts || instanceLifetimesAvg)) {
+                String ruleName = "Track instances: " + clazz;
+                String action = (instanceLifetimesAvg ? "trackInstanceLifetime(" : "trackInstance(") + classId + ", $0);";
+                ruleScriptBuilder.append(createExitRule(ruleName, clazz, "<init>", action).build());
+            }
+
+            if (callCounts) {
+                String ruleName = "Increment call count: " + clazz + " - " + method;
+                String action = "incrementMethodCallCount(" + methodId + ", " + rate + (callExecTimesAvg ? "" : dimArg) + ");";
+                ruleScriptBuilder.append(createEntryRule(ruleName, clazz, method, createSampleCondition(rate), action).build());
+            }
+            // Timed calls are sampled by the helper as entry and exit must match:
+            // a condition can only consult per-thread state, so the exit of an
+            // unsampled recursive call would end the sampled outer call
+            String traceEntry = "traceMethodEntry(" + methodId + (callTraceArgs ? ", $*" : "") + ");";
+            String traceExit = "traceMethodExit(" + methodId + ");";
+            String traceExcept = "traceMethodExitExcept(" + methodId + ");";
+            // Argument values for slowest calls are passed by the exit rules
+            String exemplarArgs = slowest != null && target.args != null ? "exemplarArgs(" + String.join(", ", target.args) + ");" : null;
+            if (callExecTimesAvg) {
+                String ruleName = "Record call time of method: " + clazz + " - " + method;
+                String action = "recordMethodCallTime(" + methodId + ", " + rate + dimArg + ");";
+                ruleScriptBuilder.append(createEntryRule(ruleName, clazz, method, callTrace ? joinActions(action, traceEntry) : action).build());
 
-                if (callCounts) {
-                    String ruleName = "Increment call count: " + clazz + " - " + method;
-                    String action = "incrementMethodCallCount($CLASS, $METHOD);";
-                    ruleScriptBuilder.append(createEntryRule(ruleName, clazz, method, action).build());
+                ruleName = "Record execution time of method: " + clazz + " - " + method;
+                action = "recordMethodExecTime(" + methodId + ");";
+                if (exemplarArgs != null) {
+                    action = joinActions(exemplarArgs, action);
                 }
-                if (callExecTimesAvg) {
-                    String ruleName = "Record call time of method: " + clazz + " - " + method;
-                    String action = "recordMethodCallTime($CLASS, $METHOD);";
-                    ruleScriptBuilder.append(createEntryRule(ruleName, clazz, method, action).build());
-
-                    ruleName = "Record execution time of method: " + clazz + " - " + method;
-                    action = "recordMethodExecTime($CLASS, $METHOD);";
-                    ruleScriptBuilder.append(createExitRule(ruleName, clazz, method, action).build());
+                ruleScriptBuilder.append(createExitRule(ruleName, clazz, method, callTrace ? joinActions(action, traceExit) : action).build());
+            } else if (callTrace) {
+                String ruleName = "Trace entry of method: " + clazz + " - " + method;
+                ruleScriptBuilder.append(createEntryRule(ruleName, clazz, method, traceEntry).build());
+
+                ruleName = "Trace exit of method: " + clazz + " - " + method;
+                ruleScriptBuilder.append(createExitRule(ruleName, clazz, method, traceExit).build());
+            }
+            // Sampled exception rules are not traced so that no exit is missed
+            int exceptRate = callExecTimesAvg ? 1 : rate;
+            if (callExitExcept) {
+                String ruleName = "Exits via exceptions from method: " + clazz + " - " + method;
+                String action = "incrementMethodExitExceptCount(" + methodId + ", " + exceptRate + ");";
+                if (exemplarArgs != null) {
+                    action = joinActions(exemplarArgs, action);
                 }
-                if (callExitExcept) {
-                    String ruleName = "Exits via exceptions from method: " + clazz + " - " + method;
-                    String action = "incrementMethodExitExceptCount($CLASS, $METHOD);";
-                    ruleScriptBuilder.append(createExceptRule(ruleName, clazz, method, action).build());
+                if (callTrace && exceptRate == 1) {
+                    action = joinActions(action, traceExcept);
                 }
+                ruleScriptBuilder.append(createExceptRule(ruleName, clazz, method, createSampleCondition(exceptRate), action).build());
+            }
+            if (callTrace && (!callExitExcept || exceptRate != 1)) {
+                String ruleName = "Trace exception exit of method: " + clazz + " - " + method;
+                ruleScriptBuilder.append(createExceptRule(ruleName, clazz, method, traceExcept).build());
             }
         }
         return ruleScriptBuilder;
@@ -286,15 +646,58 @@ public class RuleCreator {
         out.println("  " + OPT_REGISTER_METHOD + "       Specify method to register dynamic MBean on");
         out.println("  " + OPT_REGISTER_ACTION + "       Specify action (method) to register dynamic MBean with");
         out.println("  " + OPT_REGISTER_OBJECT + "       Specify object (name) to register dynamic MBean with");
+        out.println("  " + OPT_CLOCK + "                 Specify clock to time with: millis (default), nanos or coarse");
+        out.println("  " + OPT_CLOCK_TICK + "            Specify coarse clock update interval in microseconds (default 100)");
+        out.println("  " + OPT_SAMPLE_RATE + "           Specify to record only 1-in-N method calls (default 1)");
+        out.println("  " + OPT_BUDGET_EVENTS + "         Specify events per second per method to downgrade methods over");
+        out.println("  " + OPT_BUDGET_NANOS + "          Specify estimated overhead ns per second per method to downgrade methods over");
+        out.println("  " + OPT_BUFFERED + "              Specify to buffer method events per thread and aggregate them in background");
+        out.println("  " + OPT_LAZY_ATTRIBUTES + "       Specify to list attributes only once their metrics are recorded");
+        out.println("  " + OPT_DRAIN_INTERVAL + "        Specify buffered event aggregation interval in milliseconds (default 100)");
+        out.println("  " + OPT_TOP_K + "                 Specify number of most frequent dimension values to report (default 10)");
+        out.println("  " + OPT_SLOWEST + "               Specify number of slowest calls to keep details of per method");
+        out.println("  " + OPT_SLOWEST_STACKS + "        Specify to keep stack traces of slowest calls");
+        out.println("  " + OPT_WINDOW_MINUTES + "        Specify minutes to report windowed execution times over");
+        out.println("  " + OPT_HTTP + "                  Specify [address:]port to serve Prometheus metrics over HTTP on");
+        out.println("  " + OPT_STATSD + "                Specify [address:]port of StatsD agent to push metrics to");
+        out.println("  " + OPT_STATSD_INTERVAL + "       Specify StatsD flush interval in seconds (default 10)");
+        out.println("  " + OPT_STATSD_MTU + "            Specify maximum StatsD datagram size in bytes (default 1432)");
+        out.println("  " + OPT_MMV + "                  Specify PCP MMV file to publish metrics in");
+        out.println("  " + OPT_MMV_INTERVAL + "         Specify MMV publish interval in milliseconds (default 1000)");
+        out.println("  " + OPT_THRESHOLD + "             Specify threshold to send JMX notifications for (repeatable)");
+        out.println("  " + OPT_MBEANS_PER + "            Register also MBeans per class or method (class/method)");
+        out.println("  " + OPT_TRACE_FILE + "            Specify trace file to write method call trace to (default proftool.trace)");
+        out.println("  " + OPT_TRACE_SIZE + "            Specify trace file size in megabytes (default 64)");
         out.println("  " + OPT_INSTANCE_COUNTS + "       Write rules for monitoring instance counts");
         out.println("  " + OPT_INST_LIFETIMES_MIN + "    Write rules for monitoring instance min lifetimes");
         out.println("  " + OPT_INST_LIFETIMES_AVG + "    Write rules for monitoring instance avg lifetimes");
         out.println("  " + OPT_INST_LIFETIMES_MAX + "    Write rules for monitoring instance max lifetimes");
+        out.println("  " + OPT_INST_LIFETIMES_PCT + "    Write rules for monitoring instance lifetime percentiles");
         out.println("  " + OPT_CALL_COUNTS + "           Write rules for monitoring method call counts");
         out.println("  " + OPT_CALL_EXECTIMES_MIN + "    Write rules for monitoring method call min exec times");
         out.println("  " + OPT_CALL_EXECTIMES_AVG + "    Write rules for monitoring method call avg exec times");
         out.println("  " + OPT_CALL_EXECTIMES_MAX + "    Write rules for monitoring method call max exec times");
+        out.println("  " + OPT_CALL_EXECTIMES_PCT + "    Write rules for monitoring method call exec time percentiles");
         out.println("  " + OPT_CALL_EXIT_EXCEPT + "      Write rules for monitoring method exits via exceptions");
+        out.println("  " + OPT_CALL_TREE + "             Write rules for profiling method call trees");
+        out.println("  " + OPT_CALL_TRACE + "            Write rules for tracing method entries and exits");
+        out.println("  " + OPT_CALL_TRACE_ARGS + "       Write rules for tracing method entries with argument hashes");
+    }
+
+    private static final class Target {
+        final String name;
+        final String clazz;
+        final String method;
+        int id;
+        int sampleRate;
+        String dim;
+        String[] args;
+
+        Target(String name, String clazz, String method) {
+            this.name = name;
+            this.clazz = clazz;
+            this.method = method;
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InvalidAttributeValueException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/*
+ * View of the attributes of one class or method of the statistics
+ * MBean, registered under its own ObjectName so that collectors can
+ * query just the classes or methods they need. Attributes are named
+ * without the class or method name, e.g. calls instead of
+ * com.example.proftest.TestUnit.a.calls, and read through the
+ * statistics MBean, so they cost the same there and here. The list of
+ * attributes is taken from the index the statistics MBean keeps of its
+ * attributes by class or method, only when the store version shows it
+ * changed.
+ */
+final class ScopedMBean implements DynamicMBean {
+    private final MetricStore store;
+    private final JMXHelper main;
+    private final String name;
+    private final String prefix;
+    private volatile MBeanInfo info = null;
+    private volatile long infoVersion = -1;
+
+    ScopedMBean(MetricStore store, JMXHelper main, String name) {
+        this.store = store;
+        this.main = main;
+        this.name = name;
+        this.prefix = name + ".";
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        long version = store.version();
+        MBeanInfo info = this.info;
+        if (info == null || infoVersion != version) {
+            info = new MBeanInfo(getClass().getName(), "Byteman ProfTool statistics of " + name,
+                main.scopedAttributes(name), null, new MBeanOperationInfo[0], null);
+            this.info = info;
+            infoVersion = version;
+        }
+        return info;
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException, MBeanException, ReflectionException {
+        return main.getAttribute(prefix + attribute);
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        String[] names = new String[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            names[i] = prefix + attributes[i];
+        }
+        AttributeList list = new AttributeList();
+        for (Attribute a: main.getAttributes(names).asList()) {
+            list.add(new Attribute(a.getName().substring(prefix.length()), a.getValue()));
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException, MBeanException, ReflectionException {
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.util.Arrays;
+
+/*
+ * The slowest calls of a method with details to reproduce them, kept
+ * in a min-heap by duration. The duration of the fastest kept call is
+ * published as the threshold a call must exceed, so once the heap is
+ * full the exit path of a typical call only compares its duration with
+ * it; the details of a call are only collected and the heap locked for
+ * the rare calls that qualify.
+ */
+final class Slowest {
+    static final class Exemplar {
+        final long duration;
+        final long timestamp;
+        final String thread;
+        final String[] args;
+        final StackTraceElement[] stack;
+
+        Exemplar(long duration, long timestamp, String thread, String[] args, StackTraceElement[] stack) {
+            this.duration = duration;
+            this.timestamp = timestamp;
+            this.thread = thread;
+            this.args = args;
+            this.stack = stack;
+        }
+    }
+
+    private final Exemplar[] heap;
+    private int size = 0;
+    private volatile long threshold = -1;
+
+    Slowest(int capacity) {
+        heap = new Exemplar[capacity];
+    }
+
+    int capacity() {
+        return heap.length;
+    }
+
+    boolean qualifies(long duration) {
+        return duration > threshold;
+    }
+
+    synchronized void offer(Exemplar e) {
+        if (size < heap.length) {
+            int i = size++;
+            while (i > 0 && heap[(i - 1) / 2].duration > e.duration) {
+                heap[i] = heap[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            heap[i] = e;
+        } else if (e.duration > heap[0].duration) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1].duration < heap[child].duration) {
+                    child++;
+                }
+                if (heap[child].duration >= e.duration) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = e;
+        }
+        if (size == heap.length) {
+            threshold = heap[0].duration;
+        }
+    }
+
+    // Kept calls, slowest first
+    synchronized Exemplar[] sorted() {
+        Exemplar[] sorted = Arrays.copyOf(heap, size);
+        Arrays.sort(sorted, (a, b) -> Long.compare(b.duration, a.duration));
+        return sorted;
+    }
+}
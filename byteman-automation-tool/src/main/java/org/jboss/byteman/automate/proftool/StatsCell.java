@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Count, sum, sum of squares, minimum and maximum of recorded values
+ * kept together so recording touches a single record. Each stripe is
+ * an array padded to two cache lines; a cell starts with one stripe
+ * and like LongAdder adds stripes, up to the number of CPUs, once
+ * threads are seen contending on it. Min/max are updated with CAS
+ * loops so no update is ever lost.
+ */
+final class StatsCell {
+    private static final int COUNT = 0;
+    private static final int SUM = 1;
+    private static final int SUM_SQ = 2;
+    private static final int MIN = 3;
+    private static final int MAX = 4;
+    private static final int STRIDE = 16;
+
+    private volatile AtomicLongArray[] stripes = { newStripe() };
+
+    private static AtomicLongArray newStripe() {
+        AtomicLongArray stripe = new AtomicLongArray(STRIDE);
+        stripe.set(MIN, Long.MAX_VALUE);
+        stripe.set(MAX, Long.MIN_VALUE);
+        return stripe;
+    }
+
+    void record(long value) {
+        record(value, 1);
+    }
+
+    // Records a value standing for weight values, as when sampling
+    void record(long value, long weight) {
+        AtomicLongArray[] s = stripes;
+        AtomicLongArray stripe = s[Stripes.index(s.length)];
+
+        long total = value * weight;
+        long sum = stripe.get(SUM);
+        boolean contended = !stripe.compareAndSet(SUM, sum, sum + total);
+        if (contended) {
+            stripe.getAndAdd(SUM, total);
+        }
+        double square = (double) value * value * weight;
+        for (long bits = stripe.get(SUM_SQ); ; bits = stripe.get(SUM_SQ)) {
+            if (stripe.compareAndSet(SUM_SQ, bits, Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + square))) {
+                break;
+            }
+        }
+        for (long min = stripe.get(MIN); value < min; min = stripe.get(MIN)) {
+            if (stripe.compareAndSet(MIN, min, value)) {
+                break;
+            }
+        }
+        for (long max = stripe.get(MAX); value > max; max = stripe.get(MAX)) {
+            if (stripe.compareAndSet(MAX, max, value)) {
+                break;
+            }
+        }
+        // Count last so a reader never sees a count without its value
+        stripe.getAndAdd(COUNT, weight);
+
+        if (contended) {
+            grow(s);
+        }
+    }
+
+    private synchronized void grow(AtomicLongArray[] seen) {
+        if (stripes != seen || seen.length >= Stripes.MAX) {
+            return;
+        }
+        AtomicLongArray[] s = new AtomicLongArray[seen.length * 2];
+        System.arraycopy(seen, 0, s, 0, seen.length);
+        for (int i = seen.length; i < s.length; i++) {
+            s[i] = newStripe();
+        }
+        stripes = s;
+    }
+
+    Snapshot snapshot() {
+        return snapshot(false);
+    }
+
+    /*
+     * Count, sum and sum of squares are only ever added to; minimum and
+     * maximum can be restarted for a new interval, a value recorded
+     * concurrently falling in exactly one of the intervals.
+     */
+    Snapshot snapshot(boolean resetMinMax) {
+        Snapshot snap = new Snapshot();
+        for (AtomicLongArray stripe: stripes) {
+            snap.count += stripe.get(COUNT);
+            snap.sum += stripe.get(SUM);
+            snap.sumSq += Double.longBitsToDouble(stripe.get(SUM_SQ));
+            snap.min = Math.min(snap.min, resetMinMax ? stripe.getAndSet(MIN, Long.MAX_VALUE) : stripe.get(MIN));
+            snap.max = Math.max(snap.max, resetMinMax ? stripe.getAndSet(MAX, Long.MIN_VALUE) : stripe.get(MAX));
+        }
+        return snap;
+    }
+
+    static final class Snapshot {
+        long count = 0;
+        long sum = 0;
+        double sumSq = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        // Values recorded since base was taken, with the minimum and maximum of this
+        Snapshot minus(Snapshot base) {
+            Snapshot snap = new Snapshot();
+            snap.count = count - base.count;
+            snap.sum = sum - base.sum;
+            snap.sumSq = Math.max(sumSq - base.sumSq, 0);
+            snap.min = min;
+            snap.max = max;
+            return snap;
+        }
+
+        long mean() {
+            return count > 0 ? sum / count : 0;
+        }
+
+        long stddev() {
+            if (count == 0) {
+                return 0;
+            }
+            double mean = (double) sum / count;
+            return (long) Math.sqrt(Math.max(sumSq / count - mean * mean, 0));
+        }
+    }
+}
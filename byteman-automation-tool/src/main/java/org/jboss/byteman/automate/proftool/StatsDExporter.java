@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Pushes the changes of the metrics to a StatsD agent over UDP every
+ * flush interval. The changes are computed from the cumulative
+ * counters by a background thread, so instrumented threads never see
+ * the exporter, and sent pre-aggregated: counts as StatsD counters and
+ * the average, maximum and percentiles of the execution times and
+ * lifetimes of the interval, in milliseconds, as gauges. Lines are
+ * packed into as few datagrams as the MTU allows and sent on an
+ * unconnected non-blocking channel, a datagram the socket has no room
+ * for or no agent receives being dropped like any lost datagram.
+ */
+final class StatsDExporter implements Runnable {
+    private static final double[] PERCENTILES = { 50.0, 90.0, 99.0 };
+    private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99" };
+
+    private final MetricStore store;
+    private final Clock clock;
+    private final InetSocketAddress address;
+    private final String prefix;
+    private final long intervalNanos;
+    private final ByteBuffer packet;
+    private DatagramChannel channel;
+    private volatile Thread exporter;
+    // Histogram counts reused for every metric
+    private final long[] counts = new long[Histogram.BUCKETS];
+    private final long[] scratch = new long[Histogram.BUCKETS];
+
+    // Cumulative values sent last, indexed by method and class ID
+    private Last[] lastMethods = new Last[0];
+    private Last[] lastClasses = new Last[0];
+
+    private static final class Last {
+        long count1;
+        long count2;
+        long statsCount;
+        long statsSum;
+        Histogram.Delta hist = Histogram.Delta.EMPTY;
+    }
+
+    StatsDExporter(MetricStore store, Clock clock, String hostPort, String prefix, long intervalSeconds, int mtu) {
+        if (intervalSeconds <= 0) {
+            throw new IllegalArgumentException("Flush interval must be positive: " + intervalSeconds);
+        }
+        if (mtu < 64) {
+            throw new IllegalArgumentException("MTU too small: " + mtu);
+        }
+        this.store = store;
+        this.clock = clock;
+        this.address = PrometheusExporter.parseAddress(hostPort);
+        this.prefix = prefix.isEmpty() ? "" : prefix + ".";
+        this.intervalNanos = intervalSeconds * 1_000_000_000L;
+        this.packet = ByteBuffer.allocate(mtu);
+    }
+
+    public void run() {
+        Thread self = Thread.currentThread();
+        while (exporter == self) {
+            LockSupport.parkNanos(intervalNanos);
+            if (exporter == self) {
+                flush();
+            }
+        }
+    }
+
+    synchronized void flush() {
+        try {
+            if (channel == null) {
+                channel = DatagramChannel.open();
+                channel.configureBlocking(false);
+            }
+            double unit = clock.unitSeconds() * 1000;
+            MethodMetrics[] methods = store.methods();
+            if (lastMethods.length < methods.length) {
+                lastMethods = Arrays.copyOf(lastMethods, methods.length);
+            }
+            for (int id = 0; id < methods.length; id++) {
+                MethodMetrics m = methods[id];
+                if (m == null || !m.hasSeen(MethodMetrics.CALLS | MethodMetrics.EXEC_TIMES | MethodMetrics.EXIT_EXCEPT)) {
+                    continue;
+                }
+                Last last = lastMethods[id] != null ? lastMethods[id] : (lastMethods[id] = new Last());
+                String name = prefix + sanitize(m.name);
+                long calls = m.calls.sum();
+                counter(name + ".calls", calls - last.count1);
+                last.count1 = calls;
+                long exceptions = m.exitExcept.sum();
+                counter(name + ".exceptions", exceptions - last.count2);
+                last.count2 = exceptions;
+                if (m.hasSeen(MethodMetrics.STARTS)) {
+                    line(name + ".inflight", Long.toString(m.inFlight.value()), "g");
+                }
+                stats(name + ".exectime", m.execTimes.snapshot(), m.execTimesHist.counts(counts), last, unit);
+            }
+            ClassMetrics[] classes = store.classes();
+            if (lastClasses.length < classes.length) {
+                lastClasses = Arrays.copyOf(lastClasses, classes.length);
+            }
+            for (int id = 0; id < classes.length; id++) {
+                ClassMetrics c = classes[id];
+                if (c == null || !c.hasSeen(ClassMetrics.INSTANCES)) {
+                    continue;
+                }
+                Last last = lastClasses[id] != null ? lastClasses[id] : (lastClasses[id] = new Last());
+                String name = prefix + sanitize(c.name);
+                long instances = c.instances.sum();
+                counter(name + ".instances", instances - last.count1);
+                last.count1 = instances;
+                line(name + ".instances.live", Long.toString(c.liveInstances()), "g");
+                stats(name + ".lifetime", c.lifetimes.snapshot(), c.lifetimesHist.counts(counts), last, unit);
+            }
+            send();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            packet.clear();
+        }
+    }
+
+    // Count, average, maximum and percentiles of the values recorded since the last flush
+    private void stats(String name, StatsCell.Snapshot snap, long[] counts, Last last, double unit) throws IOException {
+        long count = snap.count - last.statsCount;
+        long sum = snap.sum - last.statsSum;
+        Arrays.fill(scratch, 0);
+        last.hist.addTo(scratch, 1);
+        Histogram.Delta hist = Histogram.Delta.between(scratch, counts);
+        last.statsCount = snap.count;
+        last.statsSum = snap.sum;
+        last.hist = Histogram.Delta.of(counts);
+        if (count <= 0) {
+            return;
+        }
+        counter(name + ".count", count);
+        line(name + ".avg", millis((double) sum / count, unit), "g");
+        if (hist.buckets.length > 0) {
+            Arrays.fill(scratch, 0);
+            hist.addTo(scratch, 1);
+            line(name + ".max", millis(Histogram.highestValue(hist.buckets[hist.buckets.length - 1]), unit), "g");
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                line(name + "." + PERCENTILE_NAMES[i], millis(Histogram.percentile(scratch, PERCENTILES[i]), unit), "g");
+            }
+        }
+    }
+
+    private void counter(String name, long delta) throws IOException {
+        if (delta > 0) {
+            line(name, Long.toString(delta), "c");
+        }
+    }
+
+    private static String millis(double value, double unit) {
+        return String.format(Locale.ROOT, "%.3f", value * unit);
+    }
+
+    // Appends a line to the datagram being built, sending it first if full
+    private void line(String name, String value, String type) throws IOException {
+        byte[] line = (name + ":" + value + "|" + type).getBytes(StandardCharsets.UTF_8);
+        int needed = line.length + (packet.position() > 0 ? 1 : 0);
+        if (packet.position() > 0 && needed > packet.remaining()) {
+            send();
+            needed = line.length;
+        }
+        if (needed > packet.remaining()) {
+            // Longer than a datagram on its own
+            return;
+        }
+        if (packet.position() > 0) {
+            packet.put((byte) '\n');
+        }
+        packet.put(line);
+    }
+
+    private void send() throws IOException {
+        if (packet.position() > 0) {
+            packet.flip();
+            // Dropped if the socket buffer is full; sent unconnected so that
+            // no agent listening is not reported as PortUnreachableException
+            channel.send(packet, address);
+            packet.clear();
+        }
+    }
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[:|@\\s]", "_");
+    }
+
+    synchronized void start() {
+        if (exporter == null) {
+            exporter = new Thread(this, "ProfTool StatsD exporter");
+            exporter.setDaemon(true);
+            exporter.start();
+        }
+    }
+
+    synchronized void stop() {
+        Thread t = exporter;
+        exporter = null;
+        LockSupport.unpark(t);
+        flush();
+    }
+}
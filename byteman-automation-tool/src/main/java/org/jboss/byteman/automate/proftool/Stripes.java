@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+/*
+ * Stripe selection shared by the striped metric cells. Threads are
+ * spread over the stripes by a hash of their ID.
+ */
+final class Stripes {
+    // Stripes per cell, at most the number of CPUs rounded up to a power of two
+    static final int MAX = max();
+
+    private Stripes() {
+    }
+
+    private static int max() {
+        int n = Runtime.getRuntime().availableProcessors();
+        return Math.min(Integer.highestOneBit(Math.max(n - 1, 1)) << 1, 64);
+    }
+
+    static int index(int stripeCount) {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (stripeCount - 1);
+    }
+}
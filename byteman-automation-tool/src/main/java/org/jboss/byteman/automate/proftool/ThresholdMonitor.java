@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanNotificationInfo;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+
+/*
+ * Checks configured thresholds of the metrics every TICK seconds from a
+ * background thread and sends a JMX notification when one is crossed,
+ * so that collectors need not poll all attributes to spot a slow or
+ * failing method. Instrumented threads take no part in this, the
+ * checks reading the same cumulative counters as the attributes. Rates,
+ * averages and percentiles cover the window of the threshold, computed
+ * as the change from the samples taken at its start. A breach is
+ * notified once and cleared only after the threshold has not been
+ * crossed for a whole window, so a value hovering around the limit does
+ * not produce a stream of notifications.
+ *
+ * Thresholds are given as target:metric{>|<}limit[unit][/Nm] where the
+ * target is a method or class name, a suffix of it starting after a
+ * dot or *, the metric one of calls and exceptions (per second),
+ * average, p50, p90, p99 and p999 (execution time, unit ns, us, ms or
+ * s, ms by default) or live (instances), and N the window in minutes,
+ * 1 by default.
+ */
+final class ThresholdMonitor implements Runnable {
+    static final int TICK = 5;
+    static final String BREACHED = "proftool.threshold.breached";
+    static final String CLEARED = "proftool.threshold.cleared";
+    static final MBeanNotificationInfo[] NOTIFICATIONS = {
+        new MBeanNotificationInfo(new String[] { BREACHED, CLEARED }, Notification.class.getName(), "Threshold of a metric crossed or no longer crossed")
+    };
+
+    private static final Pattern SPEC = Pattern.compile("([^:,;=]+):([a-z0-9]+)([<>])([0-9]+(?:\\.[0-9]+)?)([a-z]+)?(?:/([1-9][0-9]*)m)?");
+    private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+    private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+    private static final String[] UNITS = { "ns", "us", "ms", "s" };
+    private static final double[] UNIT_SECONDS = { 1e-9, 1e-6, 1e-3, 1 };
+    private static final CompositeType USER_DATA;
+
+    static {
+        try {
+            USER_DATA = new CompositeType("threshold", "Threshold crossed",
+                new String[] { "threshold", "name", "value", "limit" },
+                new String[] { "Threshold as configured", "Method or class", "Value of the metric, times in seconds", "Limit of the metric, times in seconds" },
+                new OpenType<?>[] { SimpleType.STRING, SimpleType.STRING, SimpleType.DOUBLE, SimpleType.DOUBLE });
+        } catch (OpenDataException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    static final class Threshold {
+        final String spec;
+        final String target;
+        final String metric;
+        final boolean above;
+        final String limitText;
+        final String unit;
+        // Limit in seconds for times, per second for rates
+        final double limit;
+        final int minutes;
+        final double percentile;
+
+        private Threshold(String spec, String target, String metric, boolean above, String limitText, String unit, double limit, int minutes, double percentile) {
+            this.spec = spec;
+            this.target = target;
+            this.metric = metric;
+            this.above = above;
+            this.limitText = limitText;
+            this.unit = unit;
+            this.limit = limit;
+            this.minutes = minutes;
+            this.percentile = percentile;
+        }
+
+        static Threshold parse(String spec) {
+            Matcher m = SPEC.matcher(spec);
+            if (!m.matches()) {
+                throw new IllegalArgumentException("Threshold must be target:metric{>|<}limit[unit][/Nm]: " + spec);
+            }
+            String metric = m.group(2);
+            String unit = m.group(5);
+            int p = Arrays.asList(PERCENTILE_NAMES).indexOf(metric);
+            double percentile = p >= 0 ? PERCENTILES[p] : -1;
+            boolean time = percentile > 0 || metric.equals("average");
+            if (!time && !metric.equals("calls") && !metric.equals("exceptions") && !metric.equals("live")) {
+                throw new IllegalArgumentException("Metric must be one of calls, exceptions, average, "
+                    + String.join(", ", PERCENTILE_NAMES) + " and live: " + spec);
+            } else if (!time && unit != null) {
+                throw new IllegalArgumentException("Only times take a unit: " + spec);
+            }
+            double limit = Double.parseDouble(m.group(4));
+            if (time) {
+                unit = unit != null ? unit : "ms";
+                int i = Arrays.asList(UNITS).indexOf(unit);
+                if (i < 0) {
+                    throw new IllegalArgumentException("Time unit must be one of " + String.join(", ", UNITS) + ": " + spec);
+                }
+                limit *= UNIT_SECONDS[i];
+            }
+            int minutes = m.group(6) != null ? Integer.parseInt(m.group(6)) : 1;
+            return new Threshold(spec, m.group(1), metric, m.group(3).equals(">"), m.group(4), unit, limit, minutes, percentile);
+        }
+
+        boolean matches(String name) {
+            return target.equals("*") || name.equals(target) || name.endsWith("." + target);
+        }
+
+        boolean isTime() {
+            return unit != null;
+        }
+
+        boolean isClassMetric() {
+            return metric.equals("live");
+        }
+    }
+
+    // Cumulative values of the metric of a threshold at a check
+    private static final class Sample {
+        final long time;
+        final long count;
+        final long sum;
+        final Histogram.Delta hist;
+
+        Sample(long time, long count, long sum, Histogram.Delta hist) {
+            this.time = time;
+            this.count = count;
+            this.sum = sum;
+            this.hist = hist;
+        }
+    }
+
+    private static final class State {
+        final Sample[] ring;
+        int next = 0;
+        boolean breached = false;
+        long lastCrossed;
+
+        State(int samples) {
+            ring = new Sample[samples];
+        }
+    }
+
+    // State of a method or class not matching the target of a threshold
+    private static final State NO_MATCH = new State(0);
+
+    private final MetricStore store;
+    private final Clock clock;
+    private final NotificationBroadcasterSupport broadcaster;
+    private final Object source;
+    private final Threshold[] thresholds;
+    private final State[][] states;
+    private final AtomicLong sequence;
+    private final long[] counts = new long[Histogram.BUCKETS];
+    private volatile Thread monitor;
+
+    ThresholdMonitor(MetricStore store, Clock clock, NotificationBroadcasterSupport broadcaster, Object source, AtomicLong sequence, String specs) {
+        this.store = store;
+        this.clock = clock;
+        this.broadcaster = broadcaster;
+        this.source = source;
+        this.sequence = sequence;
+        String[] s = specs.split(",");
+        this.thresholds = new Threshold[s.length];
+        for (int i = 0; i < s.length; i++) {
+            thresholds[i] = Threshold.parse(s[i].trim());
+        }
+        this.states = new State[s.length][0];
+    }
+
+    public void run() {
+        Thread self = Thread.currentThread();
+        while (monitor == self) {
+            LockSupport.parkNanos(TICK * 1_000_000_000L);
+            if (monitor == self) {
+                check();
+            }
+        }
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        for (int t = 0; t < thresholds.length; t++) {
+            Threshold th = thresholds[t];
+            Object[] metrics = th.isClassMetric() ? store.classes() : store.methods();
+            if (states[t].length < metrics.length) {
+                states[t] = Arrays.copyOf(states[t], metrics.length);
+            }
+            for (int id = 0; id < metrics.length; id++) {
+                Object metric = metrics[id];
+                if (metric == null) {
+                    continue;
+                }
+                State state = states[t][id];
+                if (state == null) {
+                    String name = th.isClassMetric() ? ((ClassMetrics) metric).name : ((MethodMetrics) metric).name;
+                    state = states[t][id] = th.matches(name) ? new State(th.minutes * 60 / TICK + 1) : NO_MATCH;
+                }
+                if (state == NO_MATCH) {
+                    continue;
+                }
+                if (th.isClassMetric()) {
+                    update(th, state, ((ClassMetrics) metric).name, ((ClassMetrics) metric).liveInstances(), now);
+                } else {
+                    MethodMetrics m = (MethodMetrics) metric;
+                    update(th, state, m.name, value(th, state, m, now), now);
+                }
+            }
+        }
+    }
+
+    // Value of a method metric over the window, NaN if none was recorded
+    private double value(Threshold th, State state, MethodMetrics m, long now) {
+        Sample sample;
+        if (th.metric.equals("calls")) {
+            // Calls are counted by the execution times unless counted on their own
+            long calls = m.calls.sum();
+            sample = new Sample(now, calls > 0 ? calls : m.execTimes.snapshot().count, 0, null);
+        } else if (th.metric.equals("exceptions")) {
+            sample = new Sample(now, m.exitExcept.sum(), 0, null);
+        } else {
+            StatsCell.Snapshot snap = m.execTimes.snapshot();
+            sample = new Sample(now, snap.count, snap.sum, th.percentile > 0 ? Histogram.Delta.of(m.execTimesHist.counts(counts)) : null);
+        }
+        state.ring[state.next] = sample;
+        state.next = (state.next + 1) % state.ring.length;
+        Sample first = state.ring[state.next] != null ? state.ring[state.next] : state.ring[0];
+        if (first == sample) {
+            return Double.NaN;
+        }
+        long count = sample.count - first.count;
+        if (!th.isTime()) {
+            return count / ((sample.time - first.time) / 1e9);
+        }
+        if (count <= 0) {
+            return Double.NaN;
+        }
+        if (th.percentile < 0) {
+            return (double) (sample.sum - first.sum) / count * clock.unitSeconds();
+        }
+        Arrays.fill(counts, 0);
+        sample.hist.addTo(counts, 1);
+        first.hist.addTo(counts, -1);
+        return Histogram.percentile(counts, th.percentile) * clock.unitSeconds();
+    }
+
+    private void update(Threshold th, State state, String name, double value, long now) {
+        boolean crossed = th.above ? value > th.limit : value < th.limit;
+        if (crossed) {
+            state.lastCrossed = now;
+            if (!state.breached) {
+                state.breached = true;
+                notify(BREACHED, th, name, value, "");
+            }
+        } else if (state.breached && now - state.lastCrossed >= th.minutes * 60_000_000_000L) {
+            state.breached = false;
+            notify(CLEARED, th, name, value, "no longer ");
+        }
+    }
+
+    private void notify(String type, Threshold th, String name, double value, String negation) {
+        String op = th.above ? ">" : "<";
+        String message;
+        if (th.isTime()) {
+            double unitSeconds = UNIT_SECONDS[Arrays.asList(UNITS).indexOf(th.unit)];
+            message = String.format(Locale.ROOT, "%s %s %.3f %s %s%s %s %s over %d min", name, th.metric,
+                value / unitSeconds, th.unit, negation, op, th.limitText, th.unit, th.minutes);
+        } else if (th.isClassMetric()) {
+            message = String.format(Locale.ROOT, "%s live instances %.0f %s%s %s", name, value, negation, op, th.limitText);
+        } else {
+            message = String.format(Locale.ROOT, "%s %s %.3f/s %s%s %s/s over %d min", name, th.metric,
+                value, negation, op, th.limitText, th.minutes);
+        }
+        Notification n = new Notification(type, source, sequence.incrementAndGet(), System.currentTimeMillis(), message);
+        try {
+            n.setUserData(new CompositeDataSupport(USER_DATA, new String[] { "threshold", "name", "value", "limit" },
+                new Object[] { th.spec, name, value, th.limit }));
+        } catch (OpenDataException ex) { ex.printStackTrace(); }
+        broadcaster.sendNotification(n);
+    }
+
+    synchronized void start() {
+        if (monitor == null) {
+            monitor = new Thread(this, "ProfTool threshold monitor");
+            monitor.setDaemon(true);
+            monitor.start();
+        }
+    }
+
+    synchronized void stop() {
+        Thread t = monitor;
+        monitor = null;
+        LockSupport.unpark(t);
+    }
+}
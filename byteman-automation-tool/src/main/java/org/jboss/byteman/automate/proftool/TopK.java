@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Heavy hitters of the values of a dimension of a method, such as an
+ * argument, by the Space-Saving algorithm: a fixed number of counters
+ * kept in a min-heap by count, a value not being counted taking over
+ * the counter of the least frequent one. Memory thus stays fixed no
+ * matter how many distinct values are seen, and any value seen more
+ * often than once in capacity calls is guaranteed to be counted, with
+ * count overestimated by at most its error.
+ *
+ * Execution times are of the calls seen while the value held its
+ * counter. Like StatsCell a sketch starts with one stripe and adds
+ * stripes, each a sketch of its own, once threads are seen contending
+ * on it, so recording only locks the stripe of the thread. The stripes
+ * are merged when the top values are read: a value missing from a full
+ * stripe may have been counted there as often as its least frequent
+ * value, which is added to both its count and its error, so the error
+ * bound of the merged counts is that of a single sketch of all calls.
+ */
+final class TopK {
+    static final class Counter {
+        // Dimension value as recorded, a string in the merged top values
+        final Object value;
+        long count;
+        long error;
+        long timed;
+        long time;
+        long maxTime;
+        private int index;
+
+        Counter(Object value, long count, long error, int index) {
+            this.value = value;
+            this.count = count;
+            this.error = error;
+            this.index = index;
+        }
+
+        long averageTime() {
+            return timed > 0 ? time / timed : 0;
+        }
+    }
+
+    // One Space-Saving sketch, guarded by its lock
+    private static final class Sketch {
+        final ReentrantLock lock = new ReentrantLock();
+        final Counter[] heap;
+        final Map<Object, Counter> counters = new HashMap<>();
+        int size = 0;
+
+        Sketch(int capacity) {
+            heap = new Counter[capacity];
+        }
+
+        void record(Object value, int weight, long exectime) {
+            Counter c = counters.get(value);
+            if (c == null) {
+                if (size < heap.length) {
+                    c = new Counter(value, 0, 0, size);
+                    heap[size++] = c;
+                } else {
+                    Counter min = heap[0];
+                    counters.remove(min.value);
+                    c = new Counter(value, min.count, min.count, 0);
+                    heap[0] = c;
+                }
+                counters.put(value, c);
+            }
+            c.count += weight;
+            if (exectime >= 0) {
+                c.timed += weight;
+                c.time += exectime * weight;
+                c.maxTime = Math.max(c.maxTime, exectime);
+            }
+            siftDown(c);
+        }
+
+        private void siftDown(Counter c) {
+            int i = c.index;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                    child++;
+                }
+                if (heap[child].count >= c.count) {
+                    break;
+                }
+                heap[i] = heap[child];
+                heap[i].index = i;
+                i = child;
+            }
+            heap[i] = c;
+            c.index = i;
+        }
+
+        // Count any value not counted may have, zero until full
+        long floor() {
+            return size == heap.length ? heap[0].count : 0;
+        }
+    }
+
+    // Counter of the merged sketches, with the stripe it was last seen in
+    private static final class Merged {
+        final Counter counter;
+        int stripe = -1;
+
+        Merged(String value) {
+            counter = new Counter(value, 0, 0, 0);
+        }
+    }
+
+    private final int capacity;
+    private volatile Sketch[] stripes;
+
+    TopK(int capacity) {
+        this.capacity = capacity;
+        stripes = new Sketch[] { new Sketch(capacity) };
+    }
+
+    /*
+     * Value under which a dimension value is counted. Immutable values
+     * are counted as such and only turned into strings when read, other
+     * values are turned into strings right away as they may change.
+     */
+    static Object key(Object dim) {
+        if (dim instanceof String || dim instanceof Integer || dim instanceof Long || dim instanceof Short || dim instanceof Byte
+                || dim instanceof Double || dim instanceof Float || dim instanceof Boolean || dim instanceof Character || dim instanceof Enum) {
+            return dim;
+        }
+        return String.valueOf(dim);
+    }
+
+    // Calls with weight of the value (see key), negative exec time when not timed
+    void record(Object value, int weight, long exectime) {
+        Sketch[] s = stripes;
+        Sketch sketch = s[Stripes.index(s.length)];
+        boolean contended = !sketch.lock.tryLock();
+        if (contended) {
+            sketch.lock.lock();
+        }
+        try {
+            sketch.record(value, weight, exectime);
+        } finally {
+            sketch.lock.unlock();
+        }
+        if (contended) {
+            grow(s);
+        }
+    }
+
+    private synchronized void grow(Sketch[] seen) {
+        if (stripes != seen || seen.length >= Stripes.MAX) {
+            return;
+        }
+        Sketch[] s = new Sketch[seen.length * 2];
+        System.arraycopy(seen, 0, s, 0, seen.length);
+        for (int i = seen.length; i < s.length; i++) {
+            s[i] = new Sketch(capacity);
+        }
+        stripes = s;
+    }
+
+    // Copies of the k most frequent values, most frequent first
+    Counter[] top(int k) {
+        Sketch[] s = stripes;
+        Map<String, Merged> merged = new HashMap<>();
+        long floors = 0;
+        for (int i = 0; i < s.length; i++) {
+            Sketch sketch = s[i];
+            sketch.lock.lock();
+            try {
+                long floor = sketch.floor();
+                floors += floor;
+                for (int j = 0; j < sketch.size; j++) {
+                    Counter c = sketch.heap[j];
+                    Merged m = merged.computeIfAbsent(String.valueOf(c.value), Merged::new);
+                    Counter mc = m.counter;
+                    // Counted here, so not to be estimated from the floor of this stripe
+                    if (m.stripe != i) {
+                        m.stripe = i;
+                        mc.count -= floor;
+                        mc.error -= floor;
+                    }
+                    mc.count += c.count;
+                    mc.error += c.error;
+                    mc.timed += c.timed;
+                    mc.time += c.time;
+                    mc.maxTime = Math.max(mc.maxTime, c.maxTime);
+                }
+            } finally {
+                sketch.lock.unlock();
+            }
+        }
+        List<Counter> sorted = new ArrayList<>(merged.size());
+        for (Merged m: merged.values()) {
+            m.counter.count += floors;
+            m.counter.error += floors;
+            sorted.add(m.counter);
+        }
+        sorted.sort((a, b) -> Long.compare(b.count, a.count));
+        Counter[] top = sorted.subList(0, Math.min(k, sorted.size())).toArray(new Counter[0]);
+        for (int i = 0; i < top.length; i++) {
+            top[i].index = i;
+        }
+        return top;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Ring of fixed-size binary method entry/exit/exception records in a
+ * memory-mapped file, overwriting the oldest records once full. Writers
+ * claim a slot with a single atomic increment and fill it with absolute
+ * puts to the mapping, so recording a record never allocates, locks or
+ * makes a system call. A record's sequence number is written last;
+ * readers such as Trace2TXT use it to order records and to skip slots
+ * being written or overwritten while the file was read. The plain puts
+ * are not ordered for other threads, and once the ring wraps two
+ * writers may fill the same slot at once, so each record also carries
+ * a check of all of its fields and readers drop records failing it as
+ * torn.
+ *
+ * File layout, little-endian:
+ *   header (64 bytes): magic "BMTR", version, record size, unused,
+ *     record capacity, System.nanoTime and epoch millis when created
+ *   records (32 bytes each): sequence number (slot claim + 1), nanoTime,
+ *     thread ID, method ID, record type (low 16 bits) and check (high
+ *     16 bits, see check), argument hash
+ *
+ * Method names are written to a text file next to the trace, with the
+ * .names suffix, as "<ID> <name>" lines.
+ */
+final class TraceRing {
+    static final int ENTRY = 1;
+    static final int EXIT = 2;
+    static final int EXIT_EXCEPT = 3;
+
+    static final int MAGIC = 0x52544d42;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 32;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final long mask;
+    private final AtomicLong next = new AtomicLong();
+
+    // Ring of at least sizeBytes of records, rounded up to a power of two
+    TraceRing(String fileName, long sizeBytes) throws IOException {
+        long records = Math.max((sizeBytes - HEADER_SIZE) / RECORD_SIZE, 1);
+        records = Long.highestOneBit(records) == records ? records : Long.highestOneBit(records) << 1;
+        if (HEADER_SIZE + records * RECORD_SIZE > Integer.MAX_VALUE) {
+            records = Long.highestOneBit((Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE);
+        }
+        this.file = new File(fileName);
+        this.mask = records - 1;
+        long size = HEADER_SIZE + records * RECORD_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // Start from an empty file so that no stale records remain
+            raf.setLength(0);
+            raf.setLength(size);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, RECORD_SIZE);
+        buffer.putLong(16, records);
+        buffer.putLong(24, System.nanoTime());
+        buffer.putLong(32, System.currentTimeMillis());
+    }
+
+    void record(int type, int methodId, int argHash) {
+        long seq = next.getAndIncrement() + 1;
+        int pos = HEADER_SIZE + (int) ((seq - 1) & mask) * RECORD_SIZE;
+        long time = System.nanoTime();
+        int thread = (int) Thread.currentThread().getId();
+        // Invalidate the slot for readers before overwriting it
+        buffer.putLong(pos, 0);
+        buffer.putLong(pos + 8, time);
+        buffer.putInt(pos + 16, thread);
+        buffer.putInt(pos + 20, methodId);
+        buffer.putInt(pos + 24, check(seq, time, thread, methodId, type, argHash) << 16 | type);
+        buffer.putInt(pos + 28, argHash);
+        buffer.putLong(pos, seq);
+    }
+
+    // 16-bit hash of the fields of a record, as computed by Trace2TXT
+    static int check(long seq, long time, int thread, int methodId, int type, int argHash) {
+        long h = seq * 0x9E3779B97F4A7C15L;
+        h = (h ^ time) * 0x9E3779B97F4A7C15L;
+        h = (h ^ ((long) thread << 32 | methodId & 0xffffffffL)) * 0x9E3779B97F4A7C15L;
+        h = (h ^ ((long) type << 32 | argHash & 0xffffffffL)) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 48);
+    }
+
+    // Hash of the arguments in a Byteman $* array, the first being this
+    static int argHash(Object[] args) {
+        int hash = 1;
+        for (int i = 1; i < args.length; i++) {
+            Object arg = args[i];
+            // Avoid calling application code for anything but values
+            int h = arg == null ? 0 : arg instanceof Number || arg instanceof String ||
+                arg instanceof Character || arg instanceof Boolean ? arg.hashCode() : System.identityHashCode(arg);
+            hash = 31 * hash + h;
+        }
+        return hash;
+    }
+
+    void writeNames(MethodMetrics[] methods) throws IOException {
+        try (PrintWriter out = new PrintWriter(new File(file.getPath() + ".names"), StandardCharsets.UTF_8.name())) {
+            for (int i = 0; i < methods.length; i++) {
+                if (methods[i] != null) {
+                    out.println(i + " " + methods[i].name);
+                }
+            }
+        }
+    }
+
+    // Writes the records to the file, for example once the rules are unloaded
+    void force() {
+        buffer.force();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class CallTreeTest {
+    private static MetricStore store(String... names) {
+        MetricStore store = new MetricStore();
+        store.declareMethods(0, names);
+        return store;
+    }
+
+    @Test
+    public void collapsedStacks() {
+        MetricStore store = store("T.a", "T.b");
+        CallTree tree = new CallTree();
+        CallTree.Node a = tree.newRoot().child(0);
+        a.calls = 2;
+        a.time = 5000;
+        CallTree.Node b = a.child(1);
+        b.calls = 1;
+        b.time = 2000;
+        assertEquals("T.a 3000\nT.a;T.b 2000\n", tree.collapsed(store));
+    }
+
+    @Test
+    public void chromeTraceEscapesNames() {
+        MetricStore store = store("T.\"q\"", "T.a\\b\n");
+        CallTree tree = new CallTree();
+        CallTree.Node q = tree.newRoot().child(0);
+        q.calls = 2;
+        q.time = 5000;
+        CallTree.Node b = q.child(1);
+        b.calls = 1;
+        b.time = 2000;
+        assertEquals("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[" +
+            "{\"name\":\"T.\\\"q\\\"\",\"ph\":\"X\",\"pid\":1,\"tid\":1,\"ts\":0.000,\"dur\":5.000,\"args\":{\"calls\":2,\"self\":3000}}," +
+            "{\"name\":\"T.a\\\\b\\u000a\",\"ph\":\"X\",\"pid\":1,\"tid\":1,\"ts\":0.000,\"dur\":2.000,\"args\":{\"calls\":1,\"self\":2000}}]}",
+            tree.chromeTrace(store, "ns"));
+    }
+}
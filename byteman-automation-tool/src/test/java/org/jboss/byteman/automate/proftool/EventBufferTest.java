@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class EventBufferTest {
+    private static MetricStore store() {
+        MetricStore store = new MetricStore();
+        store.declareMethods(0, new String[] { "Test#m" });
+        return store;
+    }
+
+    @Test
+    public void eventsRoundTrip() {
+        MetricStore store = store();
+        EventBuffer buffer = new EventBuffer(Thread.currentThread());
+        assertTrue(buffer.append(EventBuffer.CALL, 0, 3, 0));
+        assertTrue(buffer.append(EventBuffer.EXEC_TIME_HIST, 0, 2, 1L << 40));
+        assertTrue(buffer.append(EventBuffer.EXIT_EXCEPT, 0, 1, 0));
+        buffer.drain(store);
+        MethodMetrics m = store.methodMetrics(0);
+        assertEquals(3, m.calls());
+        assertEquals(2, m.execSnapshot().count);
+        assertEquals(1L << 41, m.execSnapshot().sum);
+        assertEquals(1, m.exitExcepts());
+        assertEquals(1L << 40, m.execPercentile(100.0), (1L << 40) / 32);
+    }
+
+    @Test
+    public void fullBufferRejects() {
+        EventBuffer buffer = new EventBuffer(Thread.currentThread());
+        int appended = 0;
+        while (buffer.append(EventBuffer.CALL, 0, 1, 0)) {
+            appended++;
+        }
+        assertTrue(appended > 0);
+        buffer.drain(store());
+        assertTrue(buffer.append(EventBuffer.CALL, 0, 1, 0));
+    }
+
+    @Test
+    public void concurrentDrainLosesNothing() throws InterruptedException {
+        MetricStore store = store();
+        MethodMetrics m = store.methodMetrics(0);
+        AtomicReference<EventBuffer> producerBuffer = new AtomicReference<>();
+        AtomicBoolean done = new AtomicBoolean();
+        int events = 2000000;
+        Thread producer = new Thread(() -> {
+            EventBuffer buffer = new EventBuffer(Thread.currentThread());
+            producerBuffer.set(buffer);
+            for (int i = 1; i <= events; i++) {
+                if (!buffer.append(EventBuffer.EXEC_TIME, 0, 1, i)) {
+                    // Recorded directly as the helper does when full
+                    m.recordExecTime(i, 1, false);
+                }
+            }
+            done.set(true);
+        });
+        producer.start();
+        while (!done.get()) {
+            EventBuffer buffer = producerBuffer.get();
+            if (buffer != null) {
+                buffer.drain(store);
+            }
+        }
+        producer.join();
+        assertFalse(producerBuffer.get().isOwnerAlive());
+        producerBuffer.get().drain(store);
+        StatsCell.Snapshot snap = m.execSnapshot();
+        assertEquals(events, snap.count);
+        assertEquals((long) events * (events + 1) / 2, snap.sum);
+        assertEquals(1, snap.min);
+        assertEquals(events, snap.max);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class GaugeTest {
+    @Test
+    public void peakIsHighestValue() {
+        Gauge g = new Gauge();
+        g.increment();
+        g.increment();
+        g.increment();
+        g.decrement();
+        g.decrement();
+        g.increment();
+        assertEquals(2, g.value());
+        assertEquals(3, g.peak());
+        g.resetPeak();
+        assertEquals(2, g.peak());
+        g.decrement();
+        assertEquals(2, g.peak());
+    }
+
+    @Test
+    public void concurrentCallsBalance() throws InterruptedException {
+        Gauge g = new Gauge();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 200000; i++) {
+                    g.increment();
+                    g.decrement();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        assertEquals(0, g.value());
+        // Each thread has at most one call in flight
+        assertTrue("peak " + g.peak(), g.peak() >= 1 && g.peak() <= threads.length);
+        g.resetPeak();
+        assertEquals(0, g.peak());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class GovernorTest {
+    private static MethodMetrics method() {
+        MetricStore store = new MetricStore();
+        store.declareMethods(0, new String[] { "Test#m" });
+        return store.methodMetrics(0);
+    }
+
+    @Test
+    public void downgradeSamplesThenCountsOnly() {
+        MethodMetrics m = method();
+        Governor.downgrade(m, 3);
+        assertEquals(4, m.governRate);
+        assertEquals(Governor.SAMPLED, Governor.mode(m));
+        Governor.downgrade(m, 2 * Governor.MAX_RATE);
+        assertFalse(m.timed);
+        assertEquals(1, m.governRate);
+        assertEquals(Governor.COUNT_ONLY, Governor.mode(m));
+    }
+
+    @Test
+    public void upgradeKeepsHeadroom() {
+        MethodMetrics m = method();
+        m.governRate = 16;
+        // Doubling the events would leave less than half of the budget
+        Governor.upgrade(m, 3);
+        assertEquals(16, m.governRate);
+        Governor.upgrade(m, 8);
+        assertEquals(4, m.governRate);
+        Governor.upgrade(m, Double.MAX_VALUE);
+        assertEquals(1, m.governRate);
+        assertEquals(Governor.FULL, Governor.mode(m));
+    }
+
+    @Test
+    public void countOnlyTimedAgainWhenSamplingFits() {
+        MethodMetrics m = method();
+        Governor.downgrade(m, 2 * Governor.MAX_RATE);
+        // Timing at MAX_RATE records 1 / MAX_RATE of the events counted now
+        Governor.upgrade(m, 1.5 / Governor.MAX_RATE);
+        assertFalse(m.timed);
+        m.governRate = 8;
+        Governor.upgrade(m, 2.5 * 8 / Governor.MAX_RATE);
+        assertTrue(m.timed);
+        assertEquals(Governor.MAX_RATE, m.governRate);
+    }
+
+    @Test
+    public void restartRecordsEverything() {
+        MetricStore store = new MetricStore();
+        store.declareMethods(0, new String[] { "Test#a", "Test#b" });
+        Governor.downgrade(store.methodMetrics(0), 2 * Governor.MAX_RATE);
+        Governor.downgrade(store.methodMetrics(1), 5);
+        new Governor(store, Clock.forName(Clock.MILLIS, 0), 100, 0).restart();
+        for (MethodMetrics m: store.methods()) {
+            assertEquals(Governor.FULL, Governor.mode(m));
+        }
+    }
+}
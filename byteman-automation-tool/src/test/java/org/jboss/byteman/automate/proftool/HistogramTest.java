@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HistogramTest {
+    @Test
+    public void bucketsHoldTheirValues() {
+        for (long value: new long[] { 0, 1, 31, 32, 33, 63, 64, 1000, 123456789, Long.MAX_VALUE / 3 }) {
+            int row = Histogram.row(value);
+            int bucket = row * 32 + Histogram.sub(value, row);
+            assertTrue(value + " above its bucket", value <= Histogram.highestValue(bucket));
+            assertTrue(value + " below its bucket", bucket == 0 || value > Histogram.highestValue(bucket - 1));
+        }
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram h = new Histogram();
+        for (long value = 1; value <= 20; value++) {
+            h.record(value);
+        }
+        assertEquals(10, h.percentile(50.0));
+        assertEquals(18, h.percentile(90.0));
+        assertEquals(20, h.percentile(100.0));
+    }
+
+    @Test
+    public void percentilesWithinRelativeError() {
+        Random random = new Random(42);
+        Histogram h = new Histogram();
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 20);
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double p: new double[] { 50.0, 90.0, 99.0, 99.9 }) {
+            long exact = values[(int) Math.ceil(p / 100 * values.length) - 1];
+            long reported = h.percentile(p);
+            assertTrue(p + "th percentile " + reported + " below " + exact, reported >= exact);
+            assertTrue(p + "th percentile " + reported + " too far above " + exact, reported <= exact + exact / 32 + 1);
+        }
+    }
+
+    @Test
+    public void weightsCountAsValues() {
+        Histogram h = new Histogram();
+        h.record(100, 99);
+        h.record(5000);
+        assertEquals(Histogram.highestValue(Histogram.row(100) * 32 + Histogram.sub(100, Histogram.row(100))), h.percentile(99.0));
+        assertEquals(5000, h.percentile(100.0), 5000 / 32);
+        assertEquals(100, Arrays.stream(h.counts()).sum());
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        assertEquals(0, new Histogram().percentile(99.0));
+    }
+
+    @Test
+    public void deltaKeepsOnlyChangedBuckets() {
+        Histogram h = new Histogram();
+        h.record(10);
+        h.record(1000);
+        long[] before = h.counts();
+        h.record(1000);
+        h.record(70000);
+        long[] after = h.counts();
+        Histogram.Delta delta = Histogram.Delta.between(before, after);
+        assertEquals(2, delta.buckets.length);
+        long[] counts = before.clone();
+        delta.addTo(counts, 1);
+        assertTrue(Arrays.equals(after, counts));
+        delta.addTo(counts, -1);
+        assertTrue(Arrays.equals(before, counts));
+        assertEquals(3, Histogram.Delta.of(after).buckets.length);
+    }
+}
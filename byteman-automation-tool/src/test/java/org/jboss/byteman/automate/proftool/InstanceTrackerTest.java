@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class InstanceTrackerTest {
+    // Collects garbage until the live count drops to the expected value
+    private static void awaitLive(ClassMetrics c, long live) throws InterruptedException {
+        for (int i = 0; i < 200 && c.liveInstances() != live; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(live, c.liveInstances());
+    }
+
+    @Test
+    public void instancesSurviveRestart() throws InterruptedException {
+        MetricStore store = new MetricStore();
+        store.declareClasses(0, new String[] { "Test" });
+        ClassMetrics c = store.classMetrics(0);
+        AtomicLong now = new AtomicLong(1000);
+        InstanceTracker tracker = new InstanceTracker(now::get);
+        tracker.start();
+        Object kept = new Object();
+        tracker.track(c, kept, now.get());
+        tracker.track(c, new Object(), now.get());
+        awaitLive(c, 1);
+        assertEquals(1, c.lifetimeSnapshot().count);
+
+        // Instances are neither dropped nor reaped while stopped
+        tracker.stop();
+        now.set(3000);
+        tracker.track(c, new Object(), now.get());
+        kept = null;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(2, c.liveInstances());
+        assertEquals(1, c.lifetimeSnapshot().count);
+
+        now.set(5000);
+        tracker.start();
+        awaitLive(c, 0);
+        assertEquals(3, c.lifetimeSnapshot().count);
+        assertEquals(0 + 4000 + 2000, c.lifetimeSnapshot().sum);
+        tracker.stop();
+    }
+}
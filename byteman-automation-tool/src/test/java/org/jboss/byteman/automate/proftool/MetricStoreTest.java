@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class MetricStoreTest {
+    @Test
+    public void ruleIdsMapToMetricsByName() {
+        MetricStore store = new MetricStore();
+        assertArrayEquals(new int[] { 0, 1 }, store.declareMethods(0, new String[] { "Test#a", "Test#b" }));
+        MethodMetrics b = store.methodMetrics(store.methodSlot(1));
+        b.recordCall(5);
+
+        // Reloaded rules with a target removed and one added
+        assertArrayEquals(new int[] { 1, 2 }, store.declareMethods(0, new String[] { "Test#b", "Test#c" }));
+        assertSame(b, store.methodMetrics(store.methodSlot(0)));
+        assertEquals(5, store.methodMetrics(store.methodSlot(0)).calls());
+        assertEquals("Test#c", store.methodMetrics(store.methodSlot(1)).name);
+        assertEquals(3, store.methods().length);
+        assertEquals("Test#a", store.methodMetrics(0).name);
+        assertEquals(2, store.methodId("Test#c"));
+    }
+
+    @Test
+    public void undeclaredRuleIds() {
+        MetricStore store = new MetricStore();
+        store.declareClasses(2, new String[] { "Test" });
+        assertEquals(-1, store.classSlot(0));
+        assertEquals(-1, store.classSlot(5));
+        assertEquals(0, store.classSlot(2));
+        assertNull(store.classMetrics(store.classSlot(0)));
+        assertEquals(-1, store.methodSlot(0));
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MmvExporterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Reads a published file back the way pmdammv does
+    private static final class Mmv {
+        final ByteBuffer b;
+        final long generation;
+        final int[] counts = new int[6];
+        final long[] offsets = new long[6];
+        // Values by metric name and instance name
+        final Map<String, Long> values = new HashMap<>();
+
+        Mmv(File file) throws IOException {
+            b = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.nativeOrder());
+            assertEquals('M', b.get(0));
+            assertEquals('M', b.get(1));
+            assertEquals('V', b.get(2));
+            assertEquals(0, b.get(3));
+            assertEquals(2, b.getInt(4));
+            generation = b.getLong(8);
+            assertEquals(generation, b.getLong(16));
+            assertEquals(2, b.getInt(28));
+            int tocs = b.getInt(24);
+            long end = 40 + tocs * 16;
+            for (int i = 0; i < tocs; i++) {
+                int type = b.getInt(40 + i * 16);
+                assertEquals(i + 1, type);
+                counts[type] = b.getInt(40 + i * 16 + 4);
+                offsets[type] = b.getLong(40 + i * 16 + 8);
+                // Sections follow each other in TOC order
+                assertEquals(end, offsets[type]);
+                end += counts[type] * (long) new int[] { 0, 32, 24, 48, 32, 256 }[type];
+            }
+            assertEquals(end, b.capacity());
+
+            for (int i = 0; i < counts[1]; i++) {
+                int indom = (int) offsets[1] + i * 32;
+                long first = b.getLong(indom + 8);
+                for (int j = 0; j < b.getInt(indom + 4); j++) {
+                    assertEquals(indom, b.getLong((int) first + j * 24));
+                }
+            }
+            for (int i = 0; i < counts[4]; i++) {
+                int value = (int) offsets[4] + i * 32;
+                int metric = (int) b.getLong(value + 16);
+                int instance = (int) b.getLong(value + 24);
+                int indom = (int) b.getLong(instance);
+                assertEquals(b.getInt(indom), b.getInt(metric + 24));
+                values.put(string(b.getLong(metric)) + " " + string(b.getLong(instance + 16)), b.getLong(value));
+            }
+        }
+
+        String string(long offset) {
+            assertTrue(offset >= offsets[5] && (offset - offsets[5]) % 256 == 0);
+            int end = (int) offset;
+            while (b.get(end) != 0) {
+                end++;
+            }
+            assertTrue(end - offset < 256);
+            byte[] bytes = new byte[end - (int) offset];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = b.get((int) offset + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private MmvExporter exporter(MetricStore store, boolean execPercentiles) throws IOException {
+        return new MmvExporter(store, Clock.forName(Clock.MILLIS, 0), execPercentiles, new File(folder.getRoot(), "proftool").getPath(), 1000);
+    }
+
+    @Test
+    public void emptyStoreHasHeaderOnly() throws IOException {
+        exporter(new MetricStore(), false).publish();
+        Mmv mmv = new Mmv(new File(folder.getRoot(), "proftool"));
+        assertEquals(40, mmv.b.capacity());
+    }
+
+    @Test
+    public void valuesOfInstances() throws IOException {
+        MetricStore store = new MetricStore();
+        store.declareMethods(0, new String[] { "Test#a", "Test#b" });
+        store.declareClasses(0, new String[] { "Test" });
+        MethodMetrics a = store.methodMetrics(0);
+        a.recordCall(3);
+        a.recordExecTime(7, 3, true);
+        store.methodMetrics(1).recordExitExcept(2);
+        store.methodMetrics(1).inFlight.increment();
+        ClassMetrics c = store.classMetrics(0);
+        c.instances.add(4);
+        c.instancesDone.increment();
+        c.lifetimes.record(20);
+        c.lifetimesHist.record(20);
+
+        exporter(store, true).publish();
+        Mmv mmv = new Mmv(new File(folder.getRoot(), "proftool"));
+        assertEquals(2, mmv.counts[1]);
+        assertEquals(3, mmv.counts[2]);
+        assertEquals(9 + 8, mmv.counts[3]);
+        assertEquals(2 * 9 + 8, mmv.counts[4]);
+        assertEquals(2 * 2 + 2 * 17 + 3, mmv.counts[5]);
+
+        assertEquals(3, (long) mmv.values.get("method.calls Test#a"));
+        assertEquals(3, (long) mmv.values.get("method.exectime.count Test#a"));
+        assertEquals(21, (long) mmv.values.get("method.exectime.total Test#a"));
+        assertEquals(7, (long) mmv.values.get("method.exectime.p99 Test#a"));
+        assertEquals(0, (long) mmv.values.get("method.calls Test#b"));
+        assertEquals(2, (long) mmv.values.get("method.exceptions Test#b"));
+        assertEquals(1, (long) mmv.values.get("method.inflight Test#b"));
+        assertEquals(4, (long) mmv.values.get("class.instances.total Test"));
+        assertEquals(3, (long) mmv.values.get("class.instances.live Test"));
+        assertEquals(20, (long) mmv.values.get("class.lifetime.total Test"));
+        assertEquals(20, (long) mmv.values.get("class.lifetime.p50 Test"));
+    }
+
+    @Test
+    public void declaringRewritesWithNewGeneration() throws IOException {
+        MetricStore store = new MetricStore();
+        store.declareMethods(0, new String[] { "Test#a" });
+        MmvExporter exporter = exporter(store, false);
+        exporter.publish();
+        File file = new File(folder.getRoot(), "proftool");
+        Mmv first = new Mmv(file);
+        assertEquals(1, first.counts[1]);
+        assertEquals(5, first.counts[4]);
+
+        store.declareMethods(3, new String[] { "Test#d" });
+        store.methodMetrics(store.methodSlot(3)).recordCall(1);
+        exporter.publish();
+        Mmv second = new Mmv(file);
+        assertTrue(second.generation > first.generation);
+        assertEquals(2, second.counts[2]);
+        assertEquals(1, second.b.getInt((int) second.offsets[2] + 24 + 12));
+        assertEquals(1, (long) second.values.get("method.calls Test#d"));
+    }
+
+    @Test
+    public void longNamesTruncatedUniquely() throws IOException {
+        StringBuilder name = new StringBuilder("Test#");
+        while (name.length() < 300) {
+            name.append('x');
+        }
+        MetricStore store = new MetricStore();
+        store.declareMethods(0, new String[] { name.toString(), name + "y" });
+        exporter(store, false).publish();
+        Mmv mmv = new Mmv(new File(folder.getRoot(), "proftool"));
+        int instances = (int) mmv.offsets[2];
+        assertTrue(mmv.string(mmv.b.getLong(instances + 16)).startsWith("0 Test#x"));
+        assertTrue(mmv.string(mmv.b.getLong(instances + 24 + 16)).startsWith("1 Test#x"));
+    }
+}
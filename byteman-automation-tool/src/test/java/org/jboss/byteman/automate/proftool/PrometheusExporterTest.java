@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PrometheusExporterTest {
+    private static final String METHOD = "com.example.Test#run";
+
+    private static MetricStore store() {
+        MetricStore store = new MetricStore();
+        store.declareMethods(0, new String[] { METHOD });
+        store.declareClasses(0, new String[] { "com.example.Test" });
+        return store;
+    }
+
+    private static String render(MetricStore store, boolean execHistograms, boolean openMetrics) {
+        return new PrometheusExporter(store, Clock.forName(Clock.MILLIS, 0), execHistograms, "0").render(openMetrics);
+    }
+
+    // Value of the sample line starting with the given name and labels
+    private static double value(String text, String sample) {
+        for (String line: text.split("\n")) {
+            if (line.startsWith(sample + " ")) {
+                return Double.parseDouble(line.substring(sample.length() + 1));
+            }
+        }
+        throw new AssertionError("No sample " + sample + " in:\n" + text);
+    }
+
+    // Every sample must follow the TYPE and HELP of its family
+    private static void assertFamilies(String text, boolean openMetrics) {
+        String family = null;
+        String[] lines = text.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.startsWith("# TYPE ")) {
+                family = line.split(" ")[2];
+                assertTrue(lines[i + 1].startsWith("# HELP " + family + " "));
+            } else if (!line.startsWith("#")) {
+                assertTrue(line + " outside of " + family, family != null && line.startsWith(family));
+            }
+        }
+        assertEquals(openMetrics, text.endsWith("\n# EOF\n"));
+        assertEquals(openMetrics ? 1 : 0, text.split("# EOF", -1).length - 1);
+    }
+
+    @Test
+    public void openMetricsCounters() {
+        MetricStore store = store();
+        MethodMetrics m = store.methodMetrics(0);
+        m.recordCall(3);
+        m.recordExitExcept(1);
+        String text = render(store, false, true);
+        assertFamilies(text, true);
+        assertTrue(text.contains("# TYPE proftool_method_calls counter\n"));
+        assertEquals(3, value(text, "proftool_method_calls_total{method=\"" + METHOD + "\"}"), 0);
+        assertEquals(1, value(text, "proftool_method_exceptions_total{method=\"" + METHOD + "\"}"), 0);
+        // Metrics not recorded have no samples
+        assertFalse(text.contains("proftool_method_inflight{"));
+        assertFalse(text.contains("proftool_class_instances_total{"));
+    }
+
+    @Test
+    public void textFormatCounterFamilies() {
+        MetricStore store = store();
+        store.methodMetrics(0).recordCall(1);
+        String text = render(store, false, false);
+        assertFamilies(text, false);
+        assertTrue(text.contains("# TYPE proftool_method_calls_total counter\n"));
+        assertEquals(1, value(text, "proftool_method_calls_total{method=\"" + METHOD + "\"}"), 0);
+    }
+
+    @Test
+    public void cumulativeBuckets() {
+        MetricStore store = store();
+        MethodMetrics m = store.methodMetrics(0);
+        m.recordExecTime(3, 2, true);
+        m.recordExecTime(200, 1, true);
+        String text = render(store, true, true);
+        assertFamilies(text, true);
+        assertTrue(text.contains("# TYPE proftool_method_exectime_seconds histogram\n"));
+
+        String prefix = "proftool_method_exectime_seconds_bucket{method=\"" + METHOD + "\",le=\"";
+        List<Double> buckets = new ArrayList<>();
+        for (String line: text.split("\n")) {
+            if (line.startsWith(prefix)) {
+                buckets.add(Double.parseDouble(line.substring(line.indexOf("} ") + 2)));
+            }
+        }
+        for (int i = 1; i < buckets.size(); i++) {
+            assertTrue(buckets.get(i - 1) <= buckets.get(i));
+        }
+        assertEquals(0, value(text, prefix + "0.0025\"}"), 0);
+        assertEquals(2, value(text, prefix + "0.005\"}"), 0);
+        assertEquals(2, value(text, prefix + "0.1\"}"), 0);
+        assertEquals(3, value(text, prefix + "0.25\"}"), 0);
+        assertEquals(3, value(text, prefix + "+Inf\"}"), 0);
+        assertEquals(3, value(text, "proftool_method_exectime_seconds_count{method=\"" + METHOD + "\"}"), 0);
+        assertEquals(0.206, value(text, "proftool_method_exectime_seconds_sum{method=\"" + METHOD + "\"}"), 1e-9);
+    }
+
+    @Test
+    public void summaryWithoutHistograms() {
+        MetricStore store = store();
+        store.methodMetrics(0).recordExecTime(5, 4, false);
+        String text = render(store, false, true);
+        assertFamilies(text, true);
+        assertTrue(text.contains("# TYPE proftool_method_exectime_seconds summary\n"));
+        assertFalse(text.contains("_bucket{"));
+        assertEquals(4, value(text, "proftool_method_exectime_seconds_count{method=\"" + METHOD + "\"}"), 0);
+        assertEquals(0.02, value(text, "proftool_method_exectime_seconds_sum{method=\"" + METHOD + "\"}"), 1e-9);
+    }
+
+    @Test
+    public void classLevels() {
+        MetricStore store = store();
+        ClassMetrics c = store.classMetrics(0);
+        c.instances.add(5);
+        c.instancesDone.add(2);
+        c.seen(ClassMetrics.INSTANCES);
+        String text = render(store, false, true);
+        assertFamilies(text, true);
+        assertEquals(5, value(text, "proftool_class_instances_total{class=\"com.example.Test\"}"), 0);
+        assertEquals(3, value(text, "proftool_class_instances_live{class=\"com.example.Test\"}"), 0);
+    }
+
+    @Test
+    public void labelValuesEscaped() {
+        MetricStore store = new MetricStore();
+        store.declareMethods(0, new String[] { "a\"b\\c\nd" });
+        store.methodMetrics(0).recordCall(1);
+        String text = render(store, false, true);
+        assertFamilies(text, true);
+        assertEquals(1, value(text, "proftool_method_calls_total{method=\"a\\\"b\\\\c\\nd\"}"), 0);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class StatsCellTest {
+    @Test
+    public void concurrentRecordsAllKept() throws InterruptedException {
+        StatsCell cell = new StatsCell();
+        Thread[] threads = new Thread[8];
+        int perThread = 100000;
+        for (int t = 0; t < threads.length; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 1; i <= perThread; i++) {
+                    cell.record(thread * perThread + i, 2);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        long n = (long) perThread * threads.length;
+        StatsCell.Snapshot snap = cell.snapshot();
+        assertEquals(2 * n, snap.count);
+        assertEquals(n * (n + 1), snap.sum);
+        assertEquals(2.0 * n * (n + 1) * (2 * n + 1) / 6, snap.sumSq, 1e-9 * snap.sumSq);
+        assertEquals(1, snap.min);
+        assertEquals(n, snap.max);
+    }
+
+    @Test
+    public void minMaxRestartPerInterval() {
+        StatsCell cell = new StatsCell();
+        cell.record(5);
+        cell.record(50);
+        StatsCell.Snapshot first = cell.snapshot(true);
+        assertEquals(5, first.min);
+        assertEquals(50, first.max);
+        cell.record(20);
+        StatsCell.Snapshot second = cell.snapshot(true).minus(first);
+        assertEquals(1, second.count);
+        assertEquals(20, second.sum);
+        assertEquals(20, second.min);
+        assertEquals(20, second.max);
+        assertEquals(20, second.mean());
+        assertEquals(0, second.stddev());
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TopKTest {
+    private static final int CAPACITY = 16;
+
+    // Half of the values each seen about twice as often as the next, half of a long tail
+    private static int skewed(Random random) {
+        return random.nextBoolean() ? Long.numberOfTrailingZeros(random.nextLong()) : 100 + random.nextInt(1000);
+    }
+
+    private static void assertBounds(TopK topK, Map<String, Long> exact, long total) {
+        TopK.Counter[] top = topK.top(Integer.MAX_VALUE);
+        Map<String, TopK.Counter> counted = new HashMap<>();
+        for (TopK.Counter c: top) {
+            counted.put((String) c.value, c);
+            long count = exact.getOrDefault(c.value, 0L);
+            assertTrue(c.value + " counted " + c.count + " below " + count, c.count >= count);
+            assertTrue(c.value + " error " + c.error + " below overestimate", c.count - c.error <= count);
+            assertTrue(c.value + " error " + c.error + " above bound", c.error <= total / CAPACITY);
+        }
+        for (Map.Entry<String, Long> e: exact.entrySet()) {
+            if (e.getValue() > total / CAPACITY) {
+                assertNotNull(e.getKey() + " seen " + e.getValue() + " times not counted", counted.get(e.getKey()));
+            }
+        }
+        for (int i = 1; i < top.length; i++) {
+            assertTrue(top[i - 1].count >= top[i].count);
+        }
+    }
+
+    @Test
+    public void countsWithinErrorBound() {
+        Random random = new Random(42);
+        TopK topK = new TopK(CAPACITY);
+        Map<String, Long> exact = new HashMap<>();
+        int total = 100000;
+        for (int i = 0; i < total; i++) {
+            int value = skewed(random);
+            topK.record(value, 1, -1);
+            exact.merge(String.valueOf(value), 1L, Long::sum);
+        }
+        assertTrue(exact.size() > CAPACITY);
+        assertBounds(topK, exact, total);
+        assertEquals("0", topK.top(1)[0].value);
+    }
+
+    @Test
+    public void stripedCountsWithinErrorBound() throws InterruptedException {
+        TopK topK = new TopK(CAPACITY);
+        Thread[] threads = new Thread[8];
+        @SuppressWarnings("unchecked")
+        Map<String, Long>[] seen = new Map[threads.length];
+        int perThread = 50000;
+        for (int t = 0; t < threads.length; t++) {
+            Map<String, Long> exact = seen[t] = new HashMap<>();
+            Random random = new Random(t);
+            int offset = t * 3;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    // Threads favour different values so stripes disagree
+                    int value = skewed(random) + offset;
+                    topK.record(value, 1, -1);
+                    exact.merge(String.valueOf(value), 1L, Long::sum);
+                }
+            });
+        }
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        Map<String, Long> exact = new HashMap<>();
+        for (Map<String, Long> m: seen) {
+            m.forEach((value, count) -> exact.merge(value, count, Long::sum));
+        }
+        assertBounds(topK, exact, (long) perThread * threads.length);
+    }
+
+    @Test
+    public void exactUntilFull() {
+        TopK topK = new TopK(CAPACITY);
+        for (int value = 0; value < CAPACITY; value++) {
+            topK.record(value, value + 1, -1);
+        }
+        TopK.Counter[] top = topK.top(3);
+        assertEquals(3, top.length);
+        for (int i = 0; i < top.length; i++) {
+            assertEquals(String.valueOf(CAPACITY - 1 - i), top[i].value);
+            assertEquals(CAPACITY - i, top[i].count);
+            assertEquals(0, top[i].error);
+        }
+    }
+
+    @Test
+    public void timesOfTimedCallsOnly() {
+        TopK topK = new TopK(CAPACITY);
+        topK.record("a", 1, 10);
+        topK.record("a", 2, 40);
+        topK.record("a", 1, -1);
+        TopK.Counter c = topK.top(1)[0];
+        assertEquals(4, c.count);
+        assertEquals(3, c.timed);
+        assertEquals(30, c.averageTime());
+        assertEquals(40, c.maxTime);
+    }
+
+    @Test
+    public void mutableValuesKeyedAsStrings() {
+        Integer boxed = 7;
+        assertTrue(TopK.key(boxed) == boxed);
+        StringBuilder mutable = new StringBuilder("x");
+        Object key = TopK.key(mutable);
+        mutable.append('y');
+        assertEquals("x", key);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TotalsTest {
+    private static MethodMetrics method() {
+        MetricStore store = new MetricStore();
+        store.declareMethods(0, new String[] { "Test#m" });
+        return store.methodMetrics(0);
+    }
+
+    private static long[] counts(Histogram.Delta delta) {
+        long[] counts = new long[Histogram.BUCKETS];
+        delta.addTo(counts, 1);
+        return counts;
+    }
+
+    @Test
+    public void resetStartsNextInterval() {
+        MethodMetrics m = method();
+        m.recordCall(1);
+        m.recordExecTime(100, 1, true);
+        m.recordExitExcept(1);
+
+        MethodMetrics.Totals first = m.totals(true);
+        assertEquals(1, first.calls);
+        assertEquals(1, first.exitExcept);
+        assertEquals(1, first.execTimes.count);
+        assertEquals(100, first.execTimes.min);
+        assertEquals(100, Histogram.percentile(counts(first.execTimesHist), 100.0), 100 / 32);
+        assertEquals(0, m.calls());
+        assertEquals(0, m.execSnapshot().count);
+        assertEquals(0, m.execPercentile(100.0));
+
+        m.recordCall(2);
+        m.recordExecTime(10, 2, true);
+        MethodMetrics.Totals second = m.totals(true);
+        assertEquals(2, second.calls);
+        assertEquals(0, second.exitExcept);
+        assertEquals(2, second.execTimes.count);
+        assertEquals(20, second.execTimes.sum);
+        assertEquals(10, second.execTimes.min);
+        assertEquals(10, second.execTimes.max);
+        assertEquals(10, Histogram.percentile(counts(second.execTimesHist), 100.0));
+    }
+
+    @Test
+    public void readingWithoutResetKeepsInterval() {
+        MethodMetrics m = method();
+        m.recordCall(3);
+        assertEquals(3, m.totals(false).calls);
+        m.recordCall(1);
+        assertEquals(4, m.totals(false).calls);
+        assertEquals(4, m.calls());
+    }
+
+    @Test
+    public void resetDropsDimensions() {
+        MethodMetrics m = method();
+        m.dims(4).record("a", 1, -1);
+        assertNotNull(m.dims());
+        m.totals(false);
+        assertNotNull(m.dims());
+        m.totals(true);
+        assertNull(m.dims());
+    }
+
+    @Test
+    public void intervalsAddUpWhileRecording() throws InterruptedException {
+        MethodMetrics m = method();
+        Thread[] threads = new Thread[4];
+        int perThread = 200000;
+        for (int t = 0; t < threads.length; t++) {
+            long exectime = 1L << (t * 4);
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    m.recordCall(1);
+                    m.recordExecTime(exectime, 1, true);
+                }
+            });
+            threads[t].start();
+        }
+
+        long calls = 0;
+        long count = 0;
+        long sum = 0;
+        long[] hist = new long[Histogram.BUCKETS];
+        boolean done = false;
+        while (!done) {
+            done = Arrays.stream(threads).noneMatch(Thread::isAlive);
+            MethodMetrics.Totals t = m.totals(true);
+            calls += t.calls;
+            count += t.execTimes.count;
+            sum += t.execTimes.sum;
+            t.execTimesHist.addTo(hist, 1);
+        }
+
+        long total = (long) perThread * threads.length;
+        assertEquals(total, calls);
+        assertEquals(total, count);
+        assertEquals(perThread * (1L + (1L << 4) + (1L << 8) + (1L << 12)), sum);
+        assertEquals(total, Arrays.stream(hist).sum());
+        assertTrue(Arrays.equals(m.execTimesHist.counts(), hist));
+    }
+
+    @Test
+    public void liveInstancesNotReset() {
+        MetricStore store = new MetricStore();
+        store.declareClasses(0, new String[] { "Test" });
+        ClassMetrics c = store.classMetrics(0);
+        c.instances.add(5);
+        c.instancesDone.add(2);
+        c.lifetimes.record(7);
+        ClassMetrics.Totals t = c.totals(true);
+        assertEquals(5, t.instances);
+        assertEquals(1, t.lifetimes.count);
+        assertEquals(0, c.instances());
+        assertEquals(3, c.liveInstances());
+        c.instances.increment();
+        assertEquals(1, c.totals(true).instances);
+        assertEquals(4, c.liveInstances());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018 Marko Myllynen <myllynen@redhat.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is subject to the "Classpath" exception as provided
+ * by the authors in the LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jboss.byteman.automate.proftool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TraceRingTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ByteBuffer read(File file) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Checks a record the way Trace2TXT does
+    private static boolean valid(ByteBuffer b, int slot) {
+        int pos = TraceRing.HEADER_SIZE + slot * TraceRing.RECORD_SIZE;
+        long seq = b.getLong(pos);
+        int typeCheck = b.getInt(pos + 24);
+        return seq != 0 && typeCheck >>> 16 == TraceRing.check(seq, b.getLong(pos + 8),
+            b.getInt(pos + 16), b.getInt(pos + 20), typeCheck & 0xffff, b.getInt(pos + 28));
+    }
+
+    @Test
+    public void sizeRoundedUp() throws IOException {
+        File file = folder.newFile("up.trace");
+        TraceRing ring = new TraceRing(file.getPath(), TraceRing.HEADER_SIZE + 5 * TraceRing.RECORD_SIZE);
+        ring.force();
+        ByteBuffer b = read(file);
+        assertEquals(TraceRing.MAGIC, b.getInt(0));
+        assertEquals(TraceRing.VERSION, b.getInt(4));
+        assertEquals(TraceRing.RECORD_SIZE, b.getInt(8));
+        assertEquals(8, b.getLong(16));
+        assertEquals(TraceRing.HEADER_SIZE + 8 * TraceRing.RECORD_SIZE, file.length());
+
+        file = folder.newFile("exact.trace");
+        new TraceRing(file.getPath(), TraceRing.HEADER_SIZE + 4 * TraceRing.RECORD_SIZE).force();
+        assertEquals(4, read(file).getLong(16));
+    }
+
+    @Test
+    public void recordsPassCheck() throws IOException {
+        File file = folder.newFile("check.trace");
+        TraceRing ring = new TraceRing(file.getPath(), TraceRing.HEADER_SIZE + 4 * TraceRing.RECORD_SIZE);
+        ring.record(TraceRing.ENTRY, 7, 42);
+        ring.record(TraceRing.EXIT, 7, 0);
+        ring.force();
+        ByteBuffer b = read(file);
+        assertTrue(valid(b, 0));
+        assertTrue(valid(b, 1));
+        int pos = TraceRing.HEADER_SIZE;
+        assertEquals(1, b.getLong(pos));
+        assertEquals(7, b.getInt(pos + 20));
+        assertEquals(TraceRing.ENTRY, b.getInt(pos + 24) & 0xffff);
+        assertEquals(42, b.getInt(pos + 28));
+        // A record mixing the fields of two writes fails
+        b.putInt(pos + 20, 8);
+        assertFalse(valid(b, 0));
+    }
+
+    @Test
+    public void concurrentWritersLeaveNoBadRecords() throws Exception {
+        File file = folder.newFile("race.trace");
+        TraceRing ring = new TraceRing(file.getPath(), TraceRing.HEADER_SIZE + 16 * TraceRing.RECORD_SIZE);
+        int threads = 4;
+        int records = 200000;
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int methodId = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < records; i++) {
+                    // Each writer keeps its method ID and argument hash equal
+                    ring.record(TraceRing.ENTRY, methodId, methodId);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        ring.force();
+        ByteBuffer b = read(file);
+        int kept = 0;
+        for (int slot = 0; slot < 16; slot++) {
+            if (valid(b, slot)) {
+                int pos = TraceRing.HEADER_SIZE + slot * TraceRing.RECORD_SIZE;
+                long seq = b.getLong(pos);
+                assertEquals(slot, (seq - 1) & 15);
+                assertTrue(seq <= (long) threads * records);
+                assertEquals(b.getInt(pos + 20), b.getInt(pos + 28));
+                assertEquals(TraceRing.ENTRY, b.getInt(pos + 24) & 0xffff);
+                kept++;
+            }
+        }
+        assertTrue(kept > 0);
+    }
+}